@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Date parsing with one thread and with all cores, to show contention.
+ * Compare the total throughput of the variants; the millis variants skip
+ * creating a Date.
+ *
+ * @author walter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateParseBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public Date parse1() {
+        return Cloud.parseDateTime(Fleet.PUBLISHED_AT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Date parse4() {
+        return Cloud.parseDateTime(Fleet.PUBLISHED_AT);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Date parseMax() {
+        return Cloud.parseDateTime(Fleet.PUBLISHED_AT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long millis1() {
+        return Cloud.parseEpochMillis(Fleet.PUBLISHED_AT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long millis4() {
+        return Cloud.parseEpochMillis(Fleet.PUBLISHED_AT);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long millisMax() {
+        return Cloud.parseEpochMillis(Fleet.PUBLISHED_AT);
+    }
+}
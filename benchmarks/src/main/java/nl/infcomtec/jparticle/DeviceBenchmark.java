@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a /v1/devices payload into Devices.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int devices;
+    private String payload;
+
+    @Setup
+    public void setup() throws IOException {
+        try (Fleet fleet = new Fleet(devices)) {
+            payload = new String(fleet.devicesJson(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public AnyJSON parseJson() {
+        return new AnyJSON(payload);
+    }
+
+    @Benchmark
+    public ArrayList<Device> construct() throws Exception {
+        JSONArray ja = new AnyJSON(payload).getArray();
+        ArrayList<Device> ret = new ArrayList<>();
+        for (int i = 0; i < ja.length(); i++) {
+            ret.add(new Device(ja.getJSONObject(i)));
+        }
+        return ret;
+    }
+}
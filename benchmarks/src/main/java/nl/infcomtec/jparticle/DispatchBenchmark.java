@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing one event to the subscribers. Only the first subscriber wants the
+ * event, the others are for other devices, so this measures the cost of
+ * finding the subscribers.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    static final int DEVICES = 1000;
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int subscribers;
+    private Fleet fleet;
+    private Event event;
+    final LongAdder delivered = new LongAdder();
+
+    @Setup
+    public void setup() throws IOException {
+        fleet = new Fleet(DEVICES);
+        for (int i = 0; i < subscribers; i++) {
+            fleet.cloud.subscribe(new Subscriber(CloudSimulator.deviceName(i % DEVICES), i < DEVICES ? null : "sim/other"));
+        }
+        event = new Event(fleet.cloud.devices, "sim/temp", new AnyJSON(Fleet.eventJson(0, 0)).getObject());
+    }
+
+    @TearDown
+    public void tearDown() {
+        fleet.close();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        fleet.cloud.dispatch(event);
+    }
+
+    private class Subscriber implements DeviceEvent {
+
+        private final UUID uuid = UUID.randomUUID();
+        private final String deviceName;
+        private final String eventName;
+
+        Subscriber(String deviceName, String eventName) {
+            this.deviceName = deviceName;
+            this.eventName = eventName;
+        }
+
+        @Override
+        public void event(Event e) {
+            delivered.increment();
+        }
+
+        @Override
+        public UUID uuid() {
+            return uuid;
+        }
+
+        @Override
+        public String forDeviceId() {
+            return null;
+        }
+
+        @Override
+        public String forDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public String forEventName() {
+            return eventName;
+        }
+    }
+}
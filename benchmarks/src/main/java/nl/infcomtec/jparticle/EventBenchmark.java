@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the data of an event and constructing the Event. The event comes
+ * from the last device, the worst case for the device name lookup.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+
+    @Param({"10", "1000", "5000"})
+    public int devices;
+    private Fleet fleet;
+    private String json;
+    private JSONObject parsed;
+
+    @Setup
+    public void setup() throws IOException {
+        fleet = new Fleet(devices);
+        json = Fleet.eventJson(devices - 1, 42);
+        parsed = new AnyJSON(json).getObject();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fleet.close();
+    }
+
+    @Benchmark
+    public AnyJSON parseJson() {
+        return new AnyJSON(json);
+    }
+
+    @Benchmark
+    public Event construct() {
+        return new Event(fleet.cloud.devices, "sim/temp", parsed);
+    }
+
+    @Benchmark
+    public Event constructIndexed() {
+        return new Event(fleet.cloud, "sim/temp", parsed);
+    }
+
+    @Benchmark
+    public Event parseAndConstruct() {
+        return new Event(fleet.cloud.devices, "sim/temp", new AnyJSON(json).getObject());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of 10,000 variable reads started at once, against a simulator that
+ * takes {@link #LATENCY} ms per request, on platform threads and on virtual
+ * threads, {@link #CONCURRENCY} of them. The score is the time until the last
+ * read is done.
+ * <p>
+ * VIRTUAL needs a Java 21 JVM to run the benchmark, on older versions it
+ * measures platform threads again.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+    static final int READS = 10000;
+    static final int DEVICES = 100;
+    static final long LATENCY = 2;
+    /**
+     * Cap of the virtual threads, the connections and the batch.
+     */
+    static final int CONCURRENCY = 1000;
+    @Param({"PLATFORM", "VIRTUAL"})
+    public ExecutionMode mode;
+    private CloudSimulator sim;
+    private Cloud cloud;
+    private ArrayList<VariableRef> refs;
+
+    @Setup
+    public void setup() throws IOException {
+        sim = new CloudSimulator(0, DEVICES, 0, LATENCY);
+        sim.start();
+        cloud = new Cloud("bench", new HttpTransport(sim.baseUrl(), CONCURRENCY), false, false, mode, CONCURRENCY);
+        refs = new ArrayList<>();
+        for (int i = 0; i < READS; i++) {
+            refs.add(new VariableRef(CloudSimulator.deviceName(i % DEVICES), "count"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cloud.close();
+        sim.stop();
+    }
+
+    /**
+     * All reads through {@link Cloud#getIntF}, which blocks on the executor.
+     */
+    @Benchmark
+    public int futures() throws Exception {
+        ArrayList<Future<Integer>> pending = new ArrayList<>(READS);
+        for (VariableRef ref : refs) {
+            pending.add(cloud.getIntF(ref.device, ref.variable));
+        }
+        int sum = 0;
+        for (Future<Integer> f : pending) {
+            sum += f.get();
+        }
+        return sum;
+    }
+
+    /**
+     * All reads through {@link Cloud#readBatch}, which also skips devices
+     * that are offline.
+     */
+    @Benchmark
+    public int batch() {
+        int ok = 0;
+        for (Map.Entry<VariableRef, ReadResult> e : cloud.readBatch(refs, CONCURRENCY, 600000).entrySet()) {
+            if (e.getValue().status == ReadResult.Status.OK) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+}
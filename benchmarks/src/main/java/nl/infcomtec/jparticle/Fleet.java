@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A simulated fleet with a Cloud connected to it, for the benchmarks.
+ *
+ * @author walter
+ */
+final class Fleet implements AutoCloseable {
+
+    /**
+     * A date as Particle sends it.
+     */
+    static final String PUBLISHED_AT = "2017-03-18T19:09:49.917Z";
+    final CloudSimulator sim;
+    final Cloud cloud;
+    final int size;
+
+    /**
+     * Start a simulator without events or latency and connect to it.
+     *
+     * @param size Number of devices.
+     * @throws IOException If the simulator does not start.
+     */
+    Fleet(int size) throws IOException {
+        this.size = size;
+        sim = new CloudSimulator(0, size, 0, 0);
+        sim.start();
+        cloud = new Cloud("bench", sim.baseUrl(), false, false);
+    }
+
+    /**
+     * @return The /v1/devices payload.
+     * @throws IOException Should not happen.
+     */
+    byte[] devicesJson() throws IOException {
+        return cloud.transport.exchange("GET", "/v1/devices", cloud.accessToken, null).body;
+    }
+
+    /**
+     * The JSON part of an event.
+     *
+     * @param device Index of the device.
+     * @param i Sequence number, used as data.
+     * @return The JSON text.
+     */
+    static String eventJson(int device, int i) {
+        return "{\"data\":\"" + i + "\",\"ttl\":60,\"published_at\":\"" + PUBLISHED_AT
+                + "\",\"coreid\":\"" + CloudSimulator.deviceId(device) + "\"}";
+    }
+
+    /**
+     * An event stream as Particle sends it.
+     *
+     * @param events Number of events.
+     * @return The stream contents.
+     */
+    byte[] sseStream(int events) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] ok = ":ok\n\n".getBytes(StandardCharsets.UTF_8);
+        bos.write(ok, 0, ok.length);
+        for (int i = 0; i < events; i++) {
+            String name = CloudSimulator.EVENT_NAMES[i % CloudSimulator.EVENT_NAMES.length];
+            byte[] b = ("event: " + name + "\ndata: " + eventJson(i % size, i) + "\n\n").getBytes(StandardCharsets.UTF_8);
+            bos.write(b, 0, b.length);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        cloud.close();
+        sim.stop();
+    }
+}
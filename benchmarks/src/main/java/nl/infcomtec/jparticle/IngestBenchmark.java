@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The event stream, from bytes to dispatched events, without subscribers.
+ * Scores are per event.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    static final int EVENTS = 1000;
+    private Fleet fleet;
+    private byte[] stream;
+
+    @Setup
+    public void setup() throws IOException {
+        fleet = new Fleet(100);
+        stream = fleet.sseStream(EVENTS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fleet.close();
+    }
+
+    /**
+     * Only splitting the stream into lines.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void lines(Blackhole bh) throws IOException {
+        try (BufferedReader bfr = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream)))) {
+            String s;
+            while (null != (s = bfr.readLine())) {
+                bh.consume(s);
+            }
+        }
+    }
+
+    /**
+     * Only decoding the stream into events, without looking at the data.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void decode(final Blackhole bh) throws IOException {
+        new SseDecoder(new SseDecoder.Handler() {
+            @Override
+            public void event(String eventName, byte[] data, int length) {
+                bh.consume(length);
+            }
+        }).read(new ByteArrayInputStream(stream));
+    }
+
+    /**
+     * Everything the event reader does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void readEvents() throws IOException {
+        fleet.cloud.readEvents(new ByteArrayInputStream(stream));
+    }
+}
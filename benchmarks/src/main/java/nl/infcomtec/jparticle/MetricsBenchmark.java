@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording a measurement, alone and with all cores recording into
+ * the same histogram. Run with {@code -prof gc} to see that recording does
+ * not allocate.
+ *
+ * @author walter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics();
+    private long value = 1;
+
+    @Benchmark
+    @Threads(1)
+    public void record1() {
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        metrics.request(Endpoint.VARIABLE_READ, (value >>> 40), true);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordMax() {
+        metrics.request(Endpoint.VARIABLE_READ, System.nanoTime() & 0xFFFFFF, true);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public HistogramSnapshot snapshot() {
+        return metrics.latency(Endpoint.VARIABLE_READ).snapshot();
+    }
+}
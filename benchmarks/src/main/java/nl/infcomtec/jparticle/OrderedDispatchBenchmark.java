@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Delivering events of many devices to one subscriber that does some work
+ * per event, unordered versus ordered per device. Scores are per event.
+ *
+ * @author walter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderedDispatchBenchmark {
+
+    static final int EVENTS = 10000;
+    static final int DEVICES = 64;
+    @Param({"UNORDERED", "ORDERED_PER_DEVICE"})
+    public DispatchMode mode;
+    @Param({"100"})
+    public int work;
+    private Fleet fleet;
+    private Subscription subscription;
+    private final Event[] events = new Event[EVENTS];
+
+    @Setup
+    public void setup() throws IOException {
+        fleet = new Fleet(DEVICES);
+        Date now = new Date();
+        for (int i = 0; i < EVENTS; i++) {
+            int d = i % DEVICES;
+            events[i] = new Event(CloudSimulator.deviceName(d), "sim/temp", CloudSimulator.deviceId(d), Integer.toString(i), now, 60);
+        }
+        subscription = fleet.cloud.subscribe(new AnyDeviceEvent() {
+            @Override
+            public void event(Event e) {
+                Blackhole.consumeCPU(work);
+            }
+        }, 1000, OverflowPolicy.BLOCK, mode);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fleet.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void dispatch() {
+        long target = subscription.delivered() + EVENTS;
+        for (Event e : events) {
+            fleet.cloud.dispatch(e);
+        }
+        while (subscription.delivered() < target) {
+            Thread.yield();
+        }
+    }
+}
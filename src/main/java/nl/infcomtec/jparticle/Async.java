@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers for {@link AsyncTransport}.
+ *
+ * @author walter
+ */
+final class Async {
+
+    /**
+     * Class of the transport on the Java 11 HTTP client, only in the jar for
+     * Java 11 and later.
+     */
+    private static final String HTTP_CLIENT = "nl.infcomtec.jparticle.HttpClientTransport";
+    /**
+     * Runs delayed steps, like waiting for the rate limiter or a retry. The
+     * steps themselves do not block.
+     */
+    private static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JParticle-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Async() {
+    }
+
+    /**
+     * Start a request on any transport.
+     *
+     * @return The response, see {@link AsyncTransport#exchangeAsync}.
+     */
+    static CompletableFuture<Response> exchange(Transport transport, String method, String path, String accessToken, String form) {
+        if (transport instanceof AsyncTransport) {
+            return ((AsyncTransport) transport).exchangeAsync(method, path, accessToken, form);
+        }
+        return now(transport, method, path, accessToken, form);
+    }
+
+    /**
+     * See if a request on a transport would hold a thread anyway: a plain
+     * {@link Transport}, or an {@link HttpTransport} without the HTTP client
+     * of Java 11, possibly wrapped.
+     *
+     * @param t The transport.
+     * @return true if its requests block.
+     */
+    static boolean blocks(Transport t) {
+        while (true) {
+            if (t instanceof HttpTransport) {
+                return null == ((HttpTransport) t).client();
+            } else if (t instanceof MeteredTransport) {
+                t = ((MeteredTransport) t).delegate;
+            } else if (t instanceof ResilientTransport) {
+                t = ((ResilientTransport) t).delegate;
+            } else if (t instanceof RateLimitedTransport) {
+                t = ((RateLimitedTransport) t).delegate;
+            } else {
+                return !(t instanceof AsyncTransport);
+            }
+        }
+    }
+
+    /**
+     * Make a blocking request on the calling thread.
+     *
+     * @return The response, already complete.
+     */
+    static CompletableFuture<Response> now(Transport transport, String method, String path, String accessToken, String form) {
+        try {
+            return CompletableFuture.completedFuture(transport.exchange(method, path, accessToken, form));
+        } catch (IOException | RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    /**
+     * Make a blocking request on an executor, like the calls bulkhead of a
+     * {@link Cloud}.
+     *
+     * @return The response, see {@link AsyncTransport#exchangeAsync}.
+     */
+    static CompletableFuture<Response> blocking(final Transport transport, Executor executor, final String method, final String path, final String accessToken, final String form) {
+        return CompletableFuture.supplyAsync(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                try {
+                    return transport.exchange(method, path, accessToken, form);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Wait for a request, for the blocking methods of an
+     * {@link AsyncTransport}.
+     *
+     * @param f The request.
+     * @return The response.
+     * @throws IOException If the request failed.
+     */
+    static Response get(CompletableFuture<Response> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            f.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        } catch (ExecutionException ex) {
+            Throwable cause = unwrap(ex);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @param t What went wrong.
+     * @return A future that failed with it.
+     */
+    static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        ret.completeExceptionally(t);
+        return ret;
+    }
+
+    /**
+     * @param t From a future.
+     * @return What really went wrong.
+     */
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && null != t.getCause()) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Run a step later.
+     *
+     * @param step The step, should not block.
+     * @param nanos Delay in nanoseconds.
+     */
+    static void schedule(Runnable step, long nanos) {
+        TIMER.schedule(step, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Create a transport on the Java 11 HTTP client.
+     *
+     * @return The transport, or null on older versions of Java.
+     */
+    static AsyncTransport httpClient(String baseUrl, int maxConnections, int connectTimeout, int readTimeout) {
+        try {
+            Constructor<?> c = Class.forName(HTTP_CLIENT).getDeclaredConstructor(String.class, int.class, int.class, int.class);
+            return (AsyncTransport) c.newInstance(baseUrl, maxConnections, connectTimeout, readTimeout);
+        } catch (ClassNotFoundException | UnsupportedClassVersionError ex) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+            Logger.getLogger(Async.class.getName()).log(Level.WARNING, "HTTP client not available", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link Transport} that can make requests without holding a thread while
+ * waiting for the network.
+ * <p>
+ * The transports of this library all implement it. {@link HttpTransport} uses
+ * the HTTP client of Java 11 and later for this; on older versions, and for a
+ * plain {@link Transport}, the blocking request runs on the calls bulkhead of
+ * the {@link Cloud} instead, or else on the calling thread.
+ *
+ * @author walter
+ */
+public interface AsyncTransport extends Transport {
+
+    /**
+     * Start a request.
+     *
+     * @param method GET or POST.
+     * @param path Path on the API host, like "/v1/devices".
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param form URL encoded form data to send, or null for none.
+     * @return The response, also for non-200 status codes; completes with an
+     * IOException if the request could not be completed.
+     */
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form);
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One of the executors of a {@link Cloud}. Outbound calls, event dispatch and
+ * polling each get their own, so a flood of work in one cannot starve the
+ * others, and each counts its tasks for {@link BulkheadStats}.
+ *
+ * @author walter
+ */
+final class Bulkhead extends AbstractExecutorService {
+
+    /**
+     * Name, also used for the threads.
+     */
+    final String name;
+    /**
+     * Maximum number of tasks running at the same time.
+     */
+    final int maxConcurrency;
+    private final ExecutorService executor;
+    /**
+     * Submitted and not finished.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean closed;
+
+    private Bulkhead(String name, int maxConcurrency, ExecutorService executor) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.executor = executor;
+    }
+
+    /**
+     * A fixed number of daemon threads, started when needed and stopped after
+     * a minute without work; for tasks that block.
+     *
+     * @param name Name of the bulkhead.
+     * @param threads Maximum number of threads.
+     * @return The bulkhead.
+     */
+    static Bulkhead threads(final String name, int threads) {
+        check(threads);
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JParticle-" + name + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        tpe.allowCoreThreadTimeOut(true);
+        return new Bulkhead(name, threads, tpe);
+    }
+
+    /**
+     * A work-stealing pool, for many short tasks like delivering events.
+     *
+     * @param name Name of the bulkhead.
+     * @param parallelism Number of threads.
+     * @return The bulkhead.
+     */
+    static Bulkhead forkJoin(final String name, int parallelism) {
+        check(parallelism);
+        return new Bulkhead(name, parallelism, new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("JParticle-" + name + "-" + n.incrementAndGet());
+                return t;
+            }
+        }, null, true));
+    }
+
+    /**
+     * A virtual thread per task, see {@link VirtualExecutor}.
+     *
+     * @param name Name of the bulkhead.
+     * @param maxConcurrency Maximum number of tasks running at the same time.
+     * @return The bulkhead, or null before Java 21.
+     */
+    static Bulkhead virtual(String name, int maxConcurrency) {
+        check(maxConcurrency);
+        VirtualExecutor ve = VirtualExecutor.create("JParticle-" + name + "-", maxConcurrency);
+        return null == ve ? null : new Bulkhead(name, maxConcurrency, ve);
+    }
+
+    private static void check(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("A bulkhead needs at least 1 thread");
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (closed) {
+            rejected.increment();
+            throw new RejectedExecutionException("Bulkhead " + name + " is closed");
+        }
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        completed.increment();
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return A snapshot of the statistics.
+     */
+    BulkheadStats stats() {
+        int a = active.get();
+        return new BulkheadStats(name, maxConcurrency, a, Math.max(0, pending.get() - a), completed.sum(), rejected.sum());
+    }
+
+    /**
+     * Wait until no task is running or waiting.
+     *
+     * @param timeout Milliseconds to wait at most.
+     * @return true if idle.
+     */
+    boolean awaitIdle(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (pending.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Let the tasks submitted so far finish, also the tasks they submit, then
+     * refuse new tasks and stop the threads. Tasks still running at the
+     * timeout are interrupted.
+     *
+     * @param timeout Milliseconds to wait at most.
+     * @return true if all tasks finished in time.
+     */
+    boolean drain(long timeout) {
+        boolean idle = awaitIdle(timeout);
+        closed = true;
+        executor.shutdownNow();
+        return idle;
+    }
+
+    @Override
+    public void shutdown() {
+        closed = true;
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        closed = true;
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return closed;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return closed && executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return stats().toString();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Snapshot of one of the executors of a {@link Cloud}, see
+ * {@link Cloud#bulkheadStats()}.
+ * <p>
+ * A saturation of 1 means every slot is busy; queued then tells how much work
+ * is waiting for one.
+ *
+ * @author walter
+ */
+public class BulkheadStats {
+
+    /**
+     * "calls", "dispatch" or "polling".
+     */
+    public final String name;
+    /**
+     * Maximum number of tasks running at the same time.
+     */
+    public final int maxConcurrency;
+    /**
+     * Tasks running.
+     */
+    public final int active;
+    /**
+     * Tasks waiting for a slot.
+     */
+    public final int queued;
+    /**
+     * Tasks finished, normally or not.
+     */
+    public final long completed;
+    /**
+     * Tasks refused because the Cloud was closed.
+     */
+    public final long rejected;
+    /**
+     * Part of the slots in use, from 0 to 1.
+     */
+    public final double saturation;
+
+    public BulkheadStats(String name, int maxConcurrency, int active, int queued, long completed, long rejected) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.active = active;
+        this.queued = queued;
+        this.completed = completed;
+        this.rejected = rejected;
+        this.saturation = maxConcurrency > 0 ? Math.min(1.0, (double) active / maxConcurrency) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkheadStats{" + "name=" + name + ", maxConcurrency=" + maxConcurrency + ", active=" + active + ", queued=" + queued
+                + ", completed=" + completed + ", rejected=" + rejected + ", saturation=" + String.format("%.2f", saturation) + '}';
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for one device, see {@link ResilientTransport}.
+ * <p>
+ * After a number of failures in a row the breaker opens and requests fail at
+ * once, without going to the cloud. When the open time has passed one request
+ * is let through as a probe (half open); if it works the breaker closes, if
+ * not it opens again.
+ *
+ * @author walter
+ */
+public class CircuitBreaker {
+
+    /**
+     * States of a breaker.
+     */
+    public enum State {
+        /**
+         * Healthy, requests go through.
+         */
+        CLOSED,
+        /**
+         * Unhealthy, requests fail at once.
+         */
+        OPEN,
+        /**
+         * Trying one request to see if the device is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Gets told about state changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the state of a breaker changed, on the thread that
+         * made the request.
+         *
+         * @param breaker The breaker.
+         * @param from The old state.
+         * @param to The new state.
+         */
+        void stateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    /**
+     * What this breaker guards, normally a device id.
+     */
+    public final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final CopyOnWriteArrayList<Listener> listeners;
+    // all below guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+    private long rejected;
+
+    /**
+     * Constructor.
+     *
+     * @param name What this breaker guards, normally a device id.
+     * @param failureThreshold Failures in a row that open the breaker.
+     * @param openTime Milliseconds to stay open before trying again.
+     * @param listeners Told about state changes, may be shared.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime, CopyOnWriteArrayList<Listener> listeners) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.listeners = null == listeners ? new CopyOnWriteArrayList<Listener>() : listeners;
+    }
+
+    /**
+     * Ask if a request may go.
+     *
+     * @return Zero if it may, else the milliseconds until the next try.
+     */
+    public long allow() {
+        State from;
+        synchronized (this) {
+            from = state;
+            switch (state) {
+                case CLOSED:
+                    return 0;
+                case OPEN:
+                    long left = openedAt + openNanos - System.nanoTime();
+                    if (left > 0) {
+                        rejected++;
+                        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+                    }
+                    state = State.HALF_OPEN;
+                    probing = true;
+                    break;
+                default:
+                    if (probing) {
+                        rejected++;
+                        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(openNanos));
+                    }
+                    probing = true;
+                    return 0;
+            }
+        }
+        fire(from, State.HALF_OPEN);
+        return 0;
+    }
+
+    /**
+     * Report a request that worked.
+     */
+    public void success() {
+        State from;
+        synchronized (this) {
+            from = state;
+            failures = 0;
+            probing = false;
+            state = State.CLOSED;
+        }
+        if (from != State.CLOSED) {
+            fire(from, State.CLOSED);
+        }
+    }
+
+    /**
+     * Report a request that failed.
+     */
+    public void failure() {
+        State from;
+        synchronized (this) {
+            from = state;
+            failures++;
+            probing = false;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+            }
+            if (from == state) {
+                return;
+            }
+        }
+        fire(from, State.OPEN);
+    }
+
+    /**
+     * Report a request that says nothing about the health of the device, like
+     * one refused for going too fast.
+     */
+    public synchronized void ignore() {
+        probing = false;
+    }
+
+    /**
+     * @return The current state.
+     */
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return Failures in a row.
+     */
+    public synchronized int failures() {
+        return failures;
+    }
+
+    /**
+     * @return Requests refused because the breaker was open.
+     */
+    public synchronized long rejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" + "name=" + name + ", state=" + state + ", failures=" + failures + ", rejected=" + rejected + '}';
+    }
+
+    private void fire(State from, State to) {
+        for (Listener l : listeners) {
+            try {
+                l.stateChanged(this, from, to);
+            } catch (Exception ex) {
+                Logger.getLogger(CircuitBreaker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
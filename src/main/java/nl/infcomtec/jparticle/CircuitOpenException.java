@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+
+/**
+ * A request was not made because the device has been failing, see
+ * {@link CircuitBreaker}.
+ *
+ * @author walter
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The device.
+     */
+    public final String deviceId;
+    /**
+     * Milliseconds until the next request will be tried.
+     */
+    public final long retryIn;
+
+    public CircuitOpenException(String deviceId, long retryIn) {
+        super("Device " + deviceId + " is failing, next try in " + retryIn + " ms");
+        this.deviceId = deviceId;
+        this.retryIn = retryIn;
+    }
+}
@@ -4,95 +4,196 @@
  */
 package nl.infcomtec.jparticle;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
+import java.io.InputStream;
 import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
  * @author walter
  */
-public class Cloud {
+public class Cloud implements AutoCloseable {
 
     /**
-     * Date and Time parser
+     * Number of events queued for a subscriber if not specified.
      */
-    private static final DateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
     /**
-     * Handles asynchronous calls to the cloud.
+     * What happens when the queue of a publisher's subscriber is full if not
+     * specified; a slow subscriber loses its oldest events and holds up no
+     * one else.
      */
-    private static final ExecutorService pool = Executors.newWorkStealingPool();
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
     /**
-     * Handles polling variables or functions
+     * Threads for calls, reads, publishes and refreshes if not specified.
      */
-    private static final ScheduledExecutorService poll = Executors.newScheduledThreadPool(0);
+    public static final int DEFAULT_CALL_THREADS = 32;
+    /**
+     * Threads for the call-backs of subscribers if not specified.
+     */
+    public static final int DEFAULT_DISPATCH_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Threads for pollers if not specified.
+     */
+    public static final int DEFAULT_POLL_THREADS = PollEngine.DEFAULT_WORKERS;
+    /**
+     * Milliseconds {@link #close()} waits for work in progress.
+     */
+    public static final long DEFAULT_CLOSE_TIMEOUT = 30000;
+    /**
+     * Limit on remembered unknown device ids, the firehose has many
+     */
+    private static final int MAX_UNKNOWN_IDS = 100000;
 
     /**
      * Convert a Particle date-time to a Java Date.
      *
      * @param dateString As found in the JSON data.
-     * @return A Java Date object.
+     * @return A Java Date object or null if it could not be parsed.
      */
     public static Date parseDateTime(String dateString) {
-        synchronized (fmt) {
-            if (dateString == null) {
-                return null;
-            }
-            if (dateString.contains("T")) {
-                dateString = dateString.replace('T', ' ');
-            }
-            if (dateString.contains("Z")) {
-                dateString = dateString.replace("Z", "+0000");
-            } else {
-                dateString = dateString.substring(0, dateString.lastIndexOf(':')) + dateString.substring(dateString.lastIndexOf(':') + 1);
-            }
-            try {
-                return fmt.parse(dateString);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
+        long millis = Iso8601.parse(dateString);
+        return millis == Iso8601.INVALID ? null : new Date(millis);
+    }
+
+    /**
+     * Convert a Particle date-time to milliseconds since the epoch. Thread
+     * safe and lock free.
+     *
+     * @param dateString As found in the JSON data, like
+     * "2017-03-18T19:09:49.917Z".
+     * @return Milliseconds since the epoch or Long.MIN_VALUE if it could not be
+     * parsed.
+     */
+    public static long parseEpochMillis(String dateString) {
+        return Iso8601.parse(dateString);
     }
 
     /**
      * Your accessToken
      */
     public final String accessToken;
+    /**
+     * How we reach the cloud, timed into the metrics
+     */
+    public final Transport transport;
+    /**
+     * Where blocking work runs; VIRTUAL only if this Java has virtual threads
+     */
+    public final ExecutionMode executionMode;
+    /**
+     * Runs calls, reads, publishes and refreshes
+     */
+    private final Bulkhead calls;
+    /**
+     * Runs the call-backs of subscribers
+     */
+    private final Bulkhead dispatch;
+    /**
+     * Runs the pollers
+     */
+    private final Bulkhead polling;
+    /**
+     * Times the pollers, they run on {@link #polling}
+     */
+    private final PollEngine pollEngine = new PollEngine(PollEngine.DEFAULT_TICK, PollEngine.DEFAULT_WHEEL_SIZE, 1, PollEngine.DEFAULT_MAX_JITTER);
+    /**
+     * Threads reading the event streams
+     */
+    private final ArrayList<PublishedReader> readers = new ArrayList<>();
+    /**
+     * Event streams read by a {@link StreamEngine}
+     */
+    private final ArrayList<StreamEngine.Stream> streams = new ArrayList<>();
+    /**
+     * Opens the event streams the subscribers need, may be null
+     */
+    private volatile StreamManager streamManager;
+    private volatile boolean closed;
+    /**
+     * Latencies, counters and gauges
+     */
+    public final Metrics metrics = new Metrics();
+    /**
+     * Events read from the streams
+     */
+    private final LongAdder eventsReceived = metrics.counter("events.received");
     /**
      * Currently registered subscribers
      */
-    private final TreeMap<UUID, DeviceEvent> callBacks = new TreeMap<>();
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
     /**
      * Currently registered poll call-backs
      */
-    private final TreeMap<UUID, ScheduledFuture<?>> polls = new TreeMap<>();
+    private final TreeMap<UUID, PollEngine.Task> polls = new TreeMap<>();
+    /**
+     * Your devices, read-only, changed by a refresh; lock it to read it, or
+     * use {@link #devices()}
+     */
+    public final TreeMap<String, Device> devices = new DeviceMap();
+    /**
+     * Your devices as of the last refresh, replaced as a whole
+     */
+    private volatile SortedMap<String, Device> snapshot = Collections.unmodifiableSortedMap(new TreeMap<String, Device>());
+    /**
+     * Told about refreshes that changed something
+     */
+    private final CopyOnWriteArrayList<InventoryListener> inventoryListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Your devices by id, replaced as a whole when the devices change
+     */
+    private volatile ConcurrentHashMap<String, Device> devicesById = new ConcurrentHashMap<>();
+    /**
+     * Ids that are not one of your devices, cleared when the devices change
+     * or when it is full
+     */
+    private final Set<String> unknownIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Optional cache for variable reads
+     */
+    private volatile VariableCache variableCache;
+    /**
+     * Optional history of received events
+     */
+    private volatile EventHistory eventHistory;
     /**
-     * Your devices
+     * Optional journal of received events
      */
-    public final TreeMap<String, Device> devices = new TreeMap<>();
+    private volatile EventJournal eventJournal;
 
     /**
-     * Constructor.
+     * Constructor. Requests go to the Particle cloud through
+     * {@link ResilientTransport#create()}, with retries, per device circuit
+     * breakers and rate limiting of this Cloud alone.
      *
      * @param accessToken Your access token.
      * @param readMine If true will start a thread to collect publications from
@@ -101,24 +202,125 @@ public class Cloud {
      * devices -- not recommended.
      */
     public Cloud(String accessToken, boolean readMine, boolean readAll) {
+        this(accessToken, ResilientTransport.create(), readMine, readAll);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param accessToken Your access token.
+     * @param baseUrl Where the cloud lives, normally
+     * {@link HttpTransport#PARTICLE_API}; use another URL for a proxy or a
+     * {@link CloudSimulator}. Requests are not rate limited, use a
+     * {@link RateLimitedTransport} for that.
+     * @param readMine If true will start a thread to collect publications from
+     * your devices.
+     * @param readAll If true will start a thread to collect publications of all
+     * devices -- not recommended.
+     */
+    public Cloud(String accessToken, String baseUrl, boolean readMine, boolean readAll) {
+        this(accessToken, new HttpTransport(baseUrl, HttpTransport.DEFAULT_MAX_CONNECTIONS), readMine, readAll);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud, all calls go through this.
+     * @param readMine If true will start a thread to collect publications from
+     * your devices.
+     * @param readAll If true will start a thread to collect publications of all
+     * devices -- not recommended.
+     */
+    public Cloud(String accessToken, Transport transport, boolean readMine, boolean readAll) {
+        this(accessToken, transport, readMine, readAll, ExecutionMode.PLATFORM, DEFAULT_CALL_THREADS, DEFAULT_DISPATCH_THREADS, DEFAULT_POLL_THREADS);
+    }
+
+    /**
+     * Constructor with a choice of where blocking work runs.
+     * <p>
+     * With {@link ExecutionMode#VIRTUAL} function calls, variable reads,
+     * publishes, pollers and the call-backs of subscribers each run on a
+     * virtual thread of their own, at most maxConcurrency at the same time;
+     * the rest wait for their turn without holding a platform thread. Before
+     * Java 21 this falls back to {@link ExecutionMode#PLATFORM}, see
+     * {@link #executionMode}.
+     *
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud, all calls go through this.
+     * @param readMine If true will start a thread to collect publications from
+     * your devices.
+     * @param readAll If true will start a thread to collect publications of all
+     * devices -- not recommended.
+     * @param mode Where blocking work runs.
+     * @param maxConcurrency Maximum number of tasks running at the same time,
+     * for each of calls, dispatch and polling; the transport may limit the
+     * requests further, for instance to its connections.
+     */
+    public Cloud(String accessToken, Transport transport, boolean readMine, boolean readAll, ExecutionMode mode, int maxConcurrency) {
+        this(accessToken, transport, readMine, readAll, mode, maxConcurrency, maxConcurrency, maxConcurrency);
+    }
+
+    /**
+     * Constructor with executors of a chosen size.
+     * <p>
+     * Each Cloud has three executors of its own, bulkheads: one for function
+     * calls, variable reads, publishes and refreshes, one for the call-backs
+     * of subscribers and one for pollers. A flood of work in one cannot starve
+     * the others, nor the work of another Cloud. See {@link #bulkheadStats()}
+     * for how busy they are and {@link #close()} to shut them down.
+     *
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud, all calls go through this.
+     * @param readMine If true will start a thread to collect publications from
+     * your devices.
+     * @param readAll If true will start a thread to collect publications of all
+     * devices -- not recommended.
+     * @param mode Where blocking work runs.
+     * @param callThreads Maximum number of calls, reads, publishes and
+     * refreshes running at the same time.
+     * @param dispatchThreads Maximum number of call-backs running at the same
+     * time.
+     * @param pollThreads Maximum number of pollers running at the same time.
+     */
+    public Cloud(String accessToken, Transport transport, boolean readMine, boolean readAll, ExecutionMode mode,
+            int callThreads, int dispatchThreads, int pollThreads) {
+        Bulkhead virtual = mode == ExecutionMode.VIRTUAL ? Bulkhead.virtual("calls", callThreads) : null;
+        if (mode == ExecutionMode.VIRTUAL && null == virtual) {
+            Logger.getLogger(Cloud.class.getName()).log(Level.WARNING, "Virtual threads need Java 21, using platform threads");
+        }
+        if (null == virtual) {
+            this.executionMode = ExecutionMode.PLATFORM;
+            this.calls = Bulkhead.threads("calls", callThreads);
+            this.dispatch = Bulkhead.forkJoin("dispatch", dispatchThreads);
+            this.polling = Bulkhead.threads("polling", pollThreads);
+        } else {
+            this.executionMode = ExecutionMode.VIRTUAL;
+            this.calls = virtual;
+            this.dispatch = Bulkhead.virtual("dispatch", dispatchThreads);
+            this.polling = Bulkhead.virtual("polling", pollThreads);
+        }
+        this.transport = new MeteredTransport(transport, metrics, calls);
         if (accessToken.startsWith("Bearer ")) {
             this.accessToken = accessToken;
         } else {
             this.accessToken = "Bearer " + accessToken;
         }
         try {
-            for (Device d : Device.getDevices(this.accessToken)) {
-                devices.put(d.name, d);
-            }
+            apply(Device.getDevices(this.accessToken, this.transport), true, Collections.<String>emptySet());
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
         }
+        addGauges();
         if (readMine) {
-            new Thread(new PublishedReader(true)).start();
+            readers.add(new PublishedReader("/v1/devices/events"));
         }
         if (readAll) {
-            new Thread(new PublishedReader(false)).start();
+            readers.add(new PublishedReader("/v1/events"));
+        }
+        for (PublishedReader r : readers) {
+            r.thread.start();
         }
     }
 
@@ -132,7 +334,7 @@ public class Cloud {
      */
     public int call(String device, String funcName, String funcArgs) {
         try {
-            return devices.get(device).callFunction(funcName, funcArgs, accessToken);
+            return device(device).callFunction(funcName, funcArgs, accessToken, transport);
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -148,7 +350,7 @@ public class Cloud {
      * @return A Future to obtain the value from.
      */
     public Future<Integer> callF(final String device, final String funcName, final String funcArgs) {
-        return pool.submit(new Callable<Integer>() {
+        return calls.submit(new Callable<Integer>() {
 
             @Override
             public Integer call() throws Exception {
@@ -166,7 +368,7 @@ public class Cloud {
      * @param funcArgs Argument(s) for the function call.
      */
     public void callTask(final String device, final String funcName, final String funcArgs) {
-        pool.submit(new Runnable() {
+        calls.submit(new Runnable() {
 
             @Override
             public void run() {
@@ -184,7 +386,11 @@ public class Cloud {
      */
     public Double getDouble(String device, String varName) {
         try {
-            return devices.get(device).readDouble(varName, accessToken);
+            if (null != variableCache) {
+                Object o = readCached(device, varName);
+                return o instanceof Number ? ((Number) o).doubleValue() : null;
+            }
+            return device(device).readDouble(varName, accessToken, transport);
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -199,7 +405,7 @@ public class Cloud {
      * @return Value of the variable or null on errors.
      */
     public Future<Double> getDoubleF(final String device, final String varName) {
-        return pool.submit(new Callable<Double>() {
+        return calls.submit(new Callable<Double>() {
 
             @Override
             public Double call() throws Exception {
@@ -217,7 +423,11 @@ public class Cloud {
      */
     public Boolean getBoolean(String device, String varName) {
         try {
-            return devices.get(device).readBoolean(varName, accessToken);
+            if (null != variableCache) {
+                Object o = readCached(device, varName);
+                return o instanceof Boolean ? (Boolean) o : null;
+            }
+            return device(device).readBoolean(varName, accessToken, transport);
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -232,7 +442,7 @@ public class Cloud {
      * @return Value of the variable or null on errors.
      */
     public Future<Boolean> getBooleanF(final String device, final String varName) {
-        return pool.submit(new Callable<Boolean>() {
+        return calls.submit(new Callable<Boolean>() {
 
             @Override
             public Boolean call() throws Exception {
@@ -250,7 +460,11 @@ public class Cloud {
      */
     public Integer getInt(String device, String varName) {
         try {
-            return devices.get(device).readInt(varName, accessToken);
+            if (null != variableCache) {
+                Object o = readCached(device, varName);
+                return o instanceof Integer ? (Integer) o : null;
+            }
+            return device(device).readInt(varName, accessToken, transport);
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -265,7 +479,7 @@ public class Cloud {
      * @return Value of the variable or null on errors.
      */
     public Future<Integer> getIntF(final String device, final String varName) {
-        return pool.submit(new Callable<Integer>() {
+        return calls.submit(new Callable<Integer>() {
 
             @Override
             public Integer call() throws Exception {
@@ -283,7 +497,11 @@ public class Cloud {
      */
     public String getString(String device, String varName) {
         try {
-            return devices.get(device).readString(varName, accessToken);
+            if (null != variableCache) {
+                Object o = readCached(device, varName);
+                return null == o ? null : o.toString();
+            }
+            return device(device).readString(varName, accessToken, transport);
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -298,7 +516,7 @@ public class Cloud {
      * @return Value of the variable or null on errors.
      */
     public Future<String> getStringF(final String device, final String varName) {
-        return pool.submit(new Callable<String>() {
+        return calls.submit(new Callable<String>() {
 
             @Override
             public String call() throws Exception {
@@ -307,6 +525,293 @@ public class Cloud {
         });
     }
 
+    /**
+     * Call a function on a device without holding a thread while waiting for
+     * the cloud, see {@link AsyncTransport}.
+     *
+     * @param device Device name.
+     * @param funcName Function name.
+     * @param funcArgs Argument(s) for the function call.
+     * @return The value the function returned, null if the cloud did not
+     * answer 200; completes exceptionally on other failures.
+     */
+    public CompletableFuture<Integer> callAsync(String device, String funcName, String funcArgs) {
+        Device d = device(device);
+        if (null == d) {
+            return Async.failed(new IllegalArgumentException("No such device " + device));
+        }
+        return d.callFunctionAsync(funcName, funcArgs, accessToken, transport);
+    }
+
+    /**
+     * Read a variable from a device without holding a thread while waiting
+     * for the cloud, through the cache if there is one.
+     *
+     * @param device Device name.
+     * @param varName Name of the variable.
+     * @return The value, null if the cloud did not answer 200; completes
+     * exceptionally on other failures.
+     */
+    public CompletableFuture<Object> readAsync(String device, String varName) {
+        final Device d = device(device);
+        if (null == d) {
+            return Async.failed(new IllegalArgumentException("No such device " + device));
+        }
+        final VariableRef ref = new VariableRef(device, varName);
+        VariableCache cache = variableCache;
+        if (null == cache) {
+            return d.readAnyAsync(varName, accessToken, transport);
+        }
+        return cache.getAsync(ref, new Supplier<CompletableFuture<Object>>() {
+            @Override
+            public CompletableFuture<Object> get() {
+                return d.readAnyAsync(ref.variable, accessToken, transport);
+            }
+        });
+    }
+
+    /**
+     * Read an integer variable without waiting, see {@link #readAsync}.
+     *
+     * @param device Device name.
+     * @param varName Name of the variable.
+     * @return The value, null if it is not an integer.
+     */
+    public CompletableFuture<Integer> getIntAsync(String device, String varName) {
+        return readAsync(device, varName).thenApply(new Function<Object, Integer>() {
+            @Override
+            public Integer apply(Object o) {
+                return o instanceof Integer ? (Integer) o : null;
+            }
+        });
+    }
+
+    /**
+     * Read a double variable without waiting, see {@link #readAsync}.
+     *
+     * @param device Device name.
+     * @param varName Name of the variable.
+     * @return The value, null if it is not a number.
+     */
+    public CompletableFuture<Double> getDoubleAsync(String device, String varName) {
+        return readAsync(device, varName).thenApply(new Function<Object, Double>() {
+            @Override
+            public Double apply(Object o) {
+                return o instanceof Number ? ((Number) o).doubleValue() : null;
+            }
+        });
+    }
+
+    /**
+     * Read a boolean variable without waiting, see {@link #readAsync}.
+     *
+     * @param device Device name.
+     * @param varName Name of the variable.
+     * @return The value, null if it is not a boolean.
+     */
+    public CompletableFuture<Boolean> getBooleanAsync(String device, String varName) {
+        return readAsync(device, varName).thenApply(new Function<Object, Boolean>() {
+            @Override
+            public Boolean apply(Object o) {
+                return o instanceof Boolean ? (Boolean) o : null;
+            }
+        });
+    }
+
+    /**
+     * Read a string variable without waiting, see {@link #readAsync}.
+     *
+     * @param device Device name.
+     * @param varName Name of the variable.
+     * @return The value as text, null if there is none.
+     */
+    public CompletableFuture<String> getStringAsync(String device, String varName) {
+        return readAsync(device, varName).thenApply(new Function<Object, String>() {
+            @Override
+            public String apply(Object o) {
+                return null == o ? null : o.toString();
+            }
+        });
+    }
+
+    /**
+     * Read many variables from many devices, with limited concurrency and an
+     * overall deadline.
+     * <p>
+     * Devices that are not connected are skipped without a request. Requests
+     * that did not finish before the deadline are abandoned and reported as
+     * timed out. When the calling thread is interrupted the requests not done
+     * yet are reported as timed out at once, with the interrupt as error, and
+     * the interrupt status is kept.
+     *
+     * @param reads The variables to read.
+     * @param maxConcurrency Maximum number of requests in progress at once.
+     * @param timeout Milliseconds before the whole batch gives up.
+     * @return The result of each read, in the order given.
+     */
+    public Map<VariableRef, ReadResult> readBatch(Collection<VariableRef> reads, int maxConcurrency, long timeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final Semaphore permits = new Semaphore(maxConcurrency);
+        LinkedHashMap<VariableRef, ReadResult> ret = new LinkedHashMap<>();
+        LinkedHashMap<VariableRef, Future<ReadResult>> pending = new LinkedHashMap<>();
+        for (final VariableRef ref : reads) {
+            final Device d = device(ref.device);
+            if (null == d) {
+                ret.put(ref, new ReadResult(ReadResult.Status.UNKNOWN_DEVICE, null, 0, null));
+                continue;
+            }
+            if (!d.connected) {
+                ret.put(ref, new ReadResult(ReadResult.Status.OFFLINE, null, 0, null));
+                continue;
+            }
+            try {
+                if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    ret.put(ref, new ReadResult(ReadResult.Status.TIMED_OUT, null, 0, null));
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                ret.put(ref, new ReadResult(ReadResult.Status.TIMED_OUT, null, 0, ex));
+                continue;
+            }
+            ret.put(ref, null);
+            pending.put(ref, calls.submit(new Callable<ReadResult>() {
+                @Override
+                public ReadResult call() {
+                    long start = System.nanoTime();
+                    try {
+                        Object value = readAny(d, ref);
+                        if (null == value) {
+                            return new ReadResult(ReadResult.Status.FAILED, null, System.nanoTime() - start, null);
+                        }
+                        return new ReadResult(ReadResult.Status.OK, value, System.nanoTime() - start, null);
+                    } catch (CircuitOpenException ex) {
+                        return new ReadResult(ReadResult.Status.CIRCUIT_OPEN, null, System.nanoTime() - start, ex);
+                    } catch (Exception ex) {
+                        return new ReadResult(ReadResult.Status.FAILED, null, System.nanoTime() - start, ex);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }));
+        }
+        InterruptedException interrupted = null;
+        for (Map.Entry<VariableRef, Future<ReadResult>> e : pending.entrySet()) {
+            if (null != interrupted) {
+                // do not wait any more, like the permits above
+                e.getValue().cancel(true);
+                ret.put(e.getKey(), new ReadResult(ReadResult.Status.TIMED_OUT, null, 0, interrupted));
+                continue;
+            }
+            try {
+                ret.put(e.getKey(), e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException ex) {
+                e.getValue().cancel(true);
+                ret.put(e.getKey(), new ReadResult(ReadResult.Status.TIMED_OUT, null, 0, null));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                interrupted = ex;
+                e.getValue().cancel(true);
+                ret.put(e.getKey(), new ReadResult(ReadResult.Status.TIMED_OUT, null, 0, ex));
+            } catch (ExecutionException ex) {
+                ret.put(e.getKey(), new ReadResult(ReadResult.Status.FAILED, null, 0, ex));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Install a cache for variable reads. All variable reads through this
+     * object, including {@link #readBatch}, will consult it first.
+     *
+     * @param cache The cache, or null to read from the cloud every time.
+     */
+    public void setVariableCache(VariableCache cache) {
+        this.variableCache = cache;
+    }
+
+    /**
+     * @return The cache for variable reads, or null if there is none.
+     */
+    public VariableCache getVariableCache() {
+        return variableCache;
+    }
+
+    /**
+     * Keep the events received from now on, before they are dispatched.
+     *
+     * @param history Where to keep them, or null to stop keeping them.
+     */
+    public void setEventHistory(EventHistory history) {
+        this.eventHistory = history;
+        streamsChanged();
+    }
+
+    /**
+     * @return Where received events are kept, or null if they are not.
+     */
+    public EventHistory getEventHistory() {
+        return eventHistory;
+    }
+
+    /**
+     * Append the events received from now on to a journal, before they are
+     * dispatched. Closing the journal is up to the caller.
+     *
+     * @param journal The journal, or null to stop appending.
+     */
+    public void setEventJournal(EventJournal journal) {
+        this.eventJournal = journal;
+        streamsChanged();
+    }
+
+    /**
+     * Let the stream manager, if any, see what is wanted now.
+     */
+    private void streamsChanged() {
+        StreamManager m = streamManager;
+        if (null != m) {
+            m.changed();
+        }
+    }
+
+    /**
+     * @return The journal received events are appended to, or null.
+     */
+    public EventJournal getEventJournal() {
+        return eventJournal;
+    }
+
+    /**
+     * Read a variable through the cache. Failures are logged and give null,
+     * like the read methods of {@link Device}.
+     */
+    private Object readCached(String device, String varName) {
+        Device d = device(device);
+        if (null == d) {
+            throw new IllegalArgumentException("No such device " + device);
+        }
+        try {
+            return readAny(d, new VariableRef(device, varName));
+        } catch (Exception ex) {
+            Device.readFailed(ex);
+        }
+        return null;
+    }
+
+    private Object readAny(final Device d, final VariableRef ref) throws Exception {
+        VariableCache cache = variableCache;
+        if (null == cache) {
+            return d.readAny(ref.variable, accessToken, transport);
+        }
+        return cache.get(ref, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return d.readAny(ref.variable, accessToken, transport);
+            }
+        });
+    }
+
     /**
      * Publish an event.
      *
@@ -347,27 +852,15 @@ public class Cloud {
      *
      */
     public void publishTask(final String name, final String data, final boolean priv, final int ttl) {
-        pool.submit(new Runnable() {
+        calls.submit(new Runnable() {
             @Override
             public void run() {
                 try {
-                    URL url = new URL("https://api.particle.io/v1/devices/events");
-                    HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Authorization", accessToken);
-                    conn.setDoOutput(true);
-                    try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
-                        wr.writeBytes("name=");
-                        wr.writeBytes(URLEncoder.encode(name, "UTF-8"));
-                        wr.writeBytes("&data=");
-                        wr.writeBytes(URLEncoder.encode(data, "UTF-8"));
-                        wr.writeBytes("&private=");
-                        wr.writeBytes(URLEncoder.encode(Boolean.toString(priv), "UTF-8"));
-                        wr.writeBytes("&ttl=");
-                        wr.writeBytes(URLEncoder.encode(Integer.toString(ttl), "UTF-8"));
-                        wr.flush();
-                    }
-                    conn.getResponseCode();
+                    String form = "name=" + URLEncoder.encode(name, "UTF-8")
+                            + "&data=" + URLEncoder.encode(data, "UTF-8")
+                            + "&private=" + URLEncoder.encode(Boolean.toString(priv), "UTF-8")
+                            + "&ttl=" + URLEncoder.encode(Integer.toString(ttl), "UTF-8");
+                    transport.exchange("POST", "/v1/devices/events", accessToken, form);
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     throw new RuntimeException(ex);
@@ -377,16 +870,27 @@ public class Cloud {
     }
 
     /**
-     * Refresh the status of your devices.
+     * Refresh the status of your devices in the background, see
+     * {@link #refreshF()}.
      */
     public void refresh() {
-        pool.submit(new Runnable() {
+        refreshF();
+    }
+
+    /**
+     * Refresh your devices with one request for the whole list. Devices that
+     * appeared, disappeared or changed are applied at once: readers of
+     * {@link #devices()} see either the old or the new devices, never a mix.
+     * Inventory listeners are told what changed.
+     *
+     * @return What changed.
+     */
+    public Future<InventoryChange> refreshF() {
+        return calls.submit(new Callable<InventoryChange>() {
             @Override
-            public void run() {
+            public InventoryChange call() throws Exception {
                 try {
-                    for (Device d : devices.values()) {
-                        devices.put(d.name, d.refresh(accessToken));
-                    }
+                    return apply(Device.getDevices(accessToken, transport, devicesById), true, Collections.<String>emptySet());
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     throw new RuntimeException(ex);
@@ -396,38 +900,229 @@ public class Cloud {
     }
 
     /**
-     * Subscribe to an event.
+     * Refresh your devices one by one, with at most maxConcurrency requests
+     * at the same time. This gets the full details of each device but does
+     * not find new devices; devices the cloud no longer knows are removed.
+     * Devices that fail to refresh keep their old values. The changes are
+     * applied at once, as with {@link #refreshF()}.
      *
-     * @param cb The call-back object holds all needed parameters.
+     * @param maxConcurrency Maximum number of requests in progress at once.
+     * @return What changed.
      */
-    public void subscribe(DeviceEvent cb) {
-        synchronized (callBacks) {
-            callBacks.put(cb.uuid(), cb);
+    public InventoryChange refreshDevices(int maxConcurrency) {
+        final Semaphore permits = new Semaphore(maxConcurrency);
+        ArrayList<Future<Device>> pending = new ArrayList<>();
+        ArrayList<Device> current = new ArrayList<>(devices().values());
+        try {
+            for (final Device d : current) {
+                permits.acquire();
+                pending.add(calls.submit(new Callable<Device>() {
+                    @Override
+                    public Device call() throws Exception {
+                        try {
+                            return d.refresh(accessToken, transport);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }));
+            }
+            ArrayList<Device> fresh = new ArrayList<>();
+            ArrayList<String> gone = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    fresh.add(pending.get(i).get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof CloudException && (((CloudException) cause).code == 403 || ((CloudException) cause).code == 404)) {
+                        gone.add(current.get(i).id);
+                    } else {
+                        Logger.getLogger(Cloud.class.getName()).log(Level.WARNING, "Refresh of " + current.get(i).name + " failed", cause);
+                    }
+                }
+            }
+            return apply(fresh, false, gone);
+        } catch (InterruptedException ex) {
+            for (Future<Device> f : pending) {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
         }
     }
 
     /**
-     * Un-subscribe from an event.
+     * A consistent view of your devices, as of the last refresh.
      *
-     * @param cb The call-back object holds all needed parameters.
+     * @return Your devices by name, read-only.
      */
-    public void unSubscribe(DeviceEvent cb) {
-        synchronized (callBacks) {
-            callBacks.remove(cb.uuid());
-        }
+    public SortedMap<String, Device> devices() {
+        return snapshot;
     }
 
     /**
-     * Poll something,
+     * Get told about devices that were added, removed or changed.
      *
-     * @param poller This is called at the appropriate intervals, as defined by
-     * the callback object. Probably you would use this to read a variable or
-     * call a function.
+     * @param listener The listener.
      */
-    public void poll(DevicePoll poller) {
-        synchronized (polls) {
-            ScheduledFuture<?> handle = poll.scheduleWithFixedDelay(poller, 0, poller.interval(), TimeUnit.MILLISECONDS);
-            polls.put(poller.uuid(), handle);
+    public void addInventoryListener(InventoryListener listener) {
+        inventoryListeners.add(listener);
+    }
+
+    /**
+     * @param listener The listener to remove.
+     */
+    public void removeInventoryListener(InventoryListener listener) {
+        inventoryListeners.remove(listener);
+    }
+
+    /**
+     * Subscribe to an event.
+     * <p>
+     * The selection (device name, device id and event name) is read once,
+     * when subscribing; to change it un-subscribe and subscribe again. Every
+     * event is delivered and the event stream never waits for the
+     * subscriber, so the queue has no limit: a subscriber that cannot keep up
+     * costs memory. To bound it, and drop events or wait when it is full,
+     * subscribe with a capacity and an {@link OverflowPolicy}.
+     *
+     * @param cb The call-back object holds all needed parameters.
+     */
+    public void subscribe(DeviceEvent cb) {
+        subscribe(cb, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Subscribe to an event, with a bounded queue of events.
+     * <p>
+     * The selection (device name, device id and event name) is read once,
+     * when subscribing; to change it un-subscribe and subscribe again.
+     *
+     * @param cb The call-back object holds all needed parameters.
+     * @param capacity Maximum number of events queued for this subscriber.
+     * @param policy What to do when the queue is full.
+     * @return The subscription, for its statistics.
+     */
+    public Subscription subscribe(DeviceEvent cb, int capacity, OverflowPolicy policy) {
+        return subscribe(cb, capacity, policy, DispatchMode.UNORDERED);
+    }
+
+    /**
+     * Subscribe to an event, with a bounded queue of events and a choice of
+     * ordering.
+     * <p>
+     * The selection (device name, device id and event name) is read once,
+     * when subscribing; to change it un-subscribe and subscribe again.
+     *
+     * @param cb The call-back object holds all needed parameters.
+     * @param capacity Maximum number of events queued for this subscriber.
+     * @param policy What to do when the queue is full.
+     * @param mode Use {@link DispatchMode#ORDERED_PER_DEVICE} to get the
+     * events of each device one at a time and in order.
+     * @return The subscription, for its statistics.
+     */
+    public Subscription subscribe(DeviceEvent cb, int capacity, OverflowPolicy policy, DispatchMode mode) {
+        Subscription s = new Subscription(cb, capacity, policy, mode, metrics.dispatchLag);
+        register(s);
+        return s;
+    }
+
+    /**
+     * Start delivering to a subscription.
+     *
+     * @param s The subscription.
+     */
+    void register(Subscription s) {
+        subscriptions.add(s);
+    }
+
+    /**
+     * Get events for subscribers that ask for them, up to
+     * {@link #DEFAULT_QUEUE_CAPACITY} queued per subscriber and after that
+     * the oldest are dropped, see {@link #DEFAULT_OVERFLOW_POLICY}. A
+     * subscriber that stops asking then only loses its own events.
+     *
+     * @param deviceId Only events of this device id, or null.
+     * @param deviceName Only events of this device name, or null.
+     * @param eventPrefix Only events with a name that starts with this, or
+     * null.
+     * @return The publisher, a java.util.concurrent.Flow.Publisher on Java 9
+     * and later.
+     */
+    public EventPublisher publisher(String deviceId, String deviceName, String eventPrefix) {
+        return publisher(deviceId, deviceName, eventPrefix, DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * Get events for subscribers that ask for them.
+     *
+     * @param deviceId Only events of this device id, or null.
+     * @param deviceName Only events of this device name, or null.
+     * @param eventPrefix Only events with a name that starts with this, or
+     * null.
+     * @param capacity Maximum number of events queued per subscriber.
+     * @param policy What to do when the queue of a subscriber is full;
+     * {@link OverflowPolicy#BLOCK} for backpressure up to the event stream,
+     * which then waits as long as any subscriber does not ask for more.
+     * @return The publisher, a java.util.concurrent.Flow.Publisher on Java 9
+     * and later.
+     */
+    public EventPublisher publisher(String deviceId, String deviceName, String eventPrefix, int capacity, OverflowPolicy policy) {
+        return new EventPublisher(this, deviceId, deviceName, eventPrefix, capacity, policy);
+    }
+
+    /**
+     * Find a subscription, for instance to look at its queue.
+     *
+     * @param uuid The UUID of the subscriber.
+     * @return The subscription or null.
+     */
+    public Subscription subscription(UUID uuid) {
+        return subscriptions.get(uuid);
+    }
+
+    /**
+     * @return All current subscriptions.
+     */
+    public List<Subscription> subscriptions() {
+        return subscriptions.all();
+    }
+
+    /**
+     * Un-subscribe from an event.
+     *
+     * @param cb The call-back object holds all needed parameters.
+     */
+    public void unSubscribe(DeviceEvent cb) {
+        subscriptions.remove(cb.uuid());
+    }
+
+    /**
+     * Statistics of the transport, like connections opened and requests
+     * waiting for a connection.
+     *
+     * @return A snapshot of the statistics.
+     */
+    public TransportStats transportStats() {
+        return transport.stats();
+    }
+
+    /**
+     * Poll something,
+     *
+     * @param poller This is called at the appropriate intervals, as defined by
+     * the callback object. Probably you would use this to read a variable or
+     * call a function. The first call is delayed by a random part of the
+     * interval (at most a second) to spread the load; after that there is a
+     * fixed delay between the end of a call and the start of the next. Polling
+     * the same uuid again replaces the earlier poller.
+     */
+    public void poll(DevicePoll poller) {
+        synchronized (polls) {
+            PollEngine.Task old = polls.put(poller.uuid(), pollEngine.schedule(poller, polling));
+            if (null != old) {
+                old.cancel(false);
+            }
         }
     }
 
@@ -438,39 +1133,64 @@ public class Cloud {
      */
     public void cancel(DevicePoll poller) {
         synchronized (polls) {
-            ScheduledFuture<?> handle = polls.remove(poller.uuid());
+            PollEngine.Task handle = polls.remove(poller.uuid());
             if (null != handle) {
                 handle.cancel(true);
             }
         }
     }
 
+    /**
+     * Get the statistics of a poller: runs, overruns and how late the runs
+     * started.
+     *
+     * @param poller The poller.
+     * @return The statistics, or null if the poller is not scheduled.
+     */
+    public PollStats pollStats(DevicePoll poller) {
+        synchronized (polls) {
+            PollEngine.Task handle = polls.get(poller.uuid());
+            return null == handle ? null : handle.stats();
+        }
+    }
+
     /**
      * Background task to process published events.
      */
-    private class PublishedReader implements Runnable {
+    class PublishedReader implements Runnable {
 
-        private final boolean mine;
+        private final String path;
+        private final Thread thread = new Thread(this);
+        private volatile InputStream stream;
+        private volatile boolean connected;
+        private volatile boolean stopped;
         public AtomicReference<Event> unclaimedEvent = new AtomicReference<>();
 
-        public PublishedReader(boolean mine) {
-            this.mine = mine;
+        public PublishedReader(String path) {
+            this.path = path;
         }
 
         @Override
         public void run() {
-            Thread.currentThread().setName("PublishedReader:" + mine);
-            while (true) {
+            Thread.currentThread().setName("PublishedReader:" + path);
+            while (!closed && !stopped) {
                 try {
                     // Normally the below should keep runnning but of course
                     // we CAN have an interruption in our network service.
                     // If so we briefly wait and start again.
                     doIO();
                 } catch (Exception ex) {
+                    connected = false;
+                    if (closed || stopped) {
+                        return;
+                    }
                     ex.printStackTrace();
                     try {
                         Thread.sleep(5000);
                     } catch (InterruptedException done) {
+                        if (closed || stopped) {
+                            return;
+                        }
                         // this probably means we should really stop
                         System.exit(4); // EINTR 4 Interrupted system call 
                     }
@@ -478,59 +1198,549 @@ public class Cloud {
             }
         }
 
-        private void doIO() throws IOException, ProtocolException, MalformedURLException {
-            URL url = new URL(mine ? "https://api.particle.io/v1/devices/events" : "https://api.particle.io/v1/events");
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Authorization", Cloud.this.accessToken);
-            conn.setDoOutput(false);
-            try (BufferedReader bfr = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                String s;
-                while (null != (s = bfr.readLine())) {
-                    if (s.startsWith("event: ")) {
-                        String eventName = s.substring(7);
-                        String data = bfr.readLine();
-                        //System.out.println(eventName + " " + data);
-                        if (data.startsWith("data: ")) {
-                            synchronized (callBacks) {
-                                AnyJSON aj = new AnyJSON(data.substring(6));
-                                final Event e = new Event(devices, eventName, aj.getObject());
-                                //System.out.println(Thread.currentThread().getName()+" "+e);
-                                for (final DeviceEvent cb : callBacks.values()) {
-                                    if (null != cb.forDeviceName() && cb.forDeviceName().equals(e.deviceName)) {
-                                        if (null == cb.forEventName() || e.eventName.equals(cb.forEventName())) {
-                                            pool.submit(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    cb.event(e);
-                                                }
-                                            });
-                                        }
-                                    } else if (null != cb.forDeviceId() && cb.forDeviceId().equals(e.coreId)) {
-                                        if (null == cb.forEventName() || e.eventName.equals(cb.forEventName())) {
-                                            pool.submit(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    cb.event(e);
-                                                }
-                                            });
-                                        }
-                                    } else if (null == cb.forDeviceName() && null == cb.forDeviceId()) {
-                                        if (null == cb.forEventName() || e.eventName.equals(cb.forEventName())) {
-                                            pool.submit(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    cb.event(e);
-                                                }
-                                            });
-                                        }
-                                    }
-                                }
-                            }
+        private void doIO() throws IOException {
+            InputStream is = transport.stream(path, Cloud.this.accessToken);
+            stream = is;
+            if (closed || stopped) {
+                is.close();
+                return;
+            }
+            connected = true;
+            try {
+                readEvents(new FilterInputStream(is) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        // a stopped reader ends after the read in progress
+                        return stopped ? -1 : super.read(b, off, len);
+                    }
+                });
+            } finally {
+                connected = false;
+            }
+        }
+
+        /**
+         * @return true if the stream is open.
+         */
+        boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * Close the stream and wake the thread, after {@link #closed} or
+         * {@link #stopped} is set.
+         */
+        private void stop() {
+            thread.interrupt();
+            final InputStream is = stream;
+            if (null != is) {
+                // closing waits for a read in progress, that is for the next
+                // event, which on a narrow stream can take long
+                Thread closer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            is.close();
+                        } catch (IOException ex) {
+                            // the reader ends either way
                         }
                     }
+                }, "PublishedReader:close");
+                closer.setDaemon(true);
+                closer.start();
+            }
+        }
+    }
+
+    /**
+     * Read an event stream on a {@link StreamEngine}, shared with other
+     * Clouds, instead of on a thread of its own. Use it with false for
+     * readMine and readAll in the constructor. The stream is opened to the
+     * URL of the transport, without its retries, rate limiting and metrics;
+     * it is closed with the Cloud.
+     *
+     * @param engine The engine, for instance {@link StreamEngine#getDefault()}.
+     * @param mine If true the events of your devices, else those of all
+     * devices -- not recommended.
+     * @return The stream, to close it or see if it is connected.
+     * @throws IOException If the engine is closed or the URL cannot be used.
+     */
+    public StreamEngine.Stream streamEvents(StreamEngine engine, boolean mine) throws IOException {
+        return openStream(engine, mine ? "/v1/devices/events" : "/v1/events");
+    }
+
+    /**
+     * Open only the event streams the subscribers need, narrowed on device
+     * and event name, and open others when the subscriptions or devices
+     * change; see {@link StreamManager}. Use it with false for readMine and
+     * readAll in the constructor.
+     *
+     * @param engine The engine to read the streams, or null for a thread per
+     * stream through the transport.
+     * @param mine If true the events of your devices, else those of all
+     * devices, which can only be narrowed on event name.
+     * @param maxStreams Streams at most, for instance
+     * {@link StreamManager#DEFAULT_MAX_STREAMS}.
+     * @return The manager, to see which streams are open.
+     * @throws IOException If the Cloud is closed.
+     */
+    public StreamManager manageStreams(StreamEngine engine, boolean mine, int maxStreams) throws IOException {
+        StreamManager m = new StreamManager(this, calls, engine, mine, maxStreams);
+        synchronized (readers) {
+            if (closed) {
+                throw new IOException("Cloud is closed");
+            }
+            if (null != streamManager) {
+                throw new IllegalStateException("The streams are managed already");
+            }
+            streamManager = m;
+        }
+        subscriptions.setListener(new Runnable() {
+            @Override
+            public void run() {
+                streamsChanged();
+            }
+        });
+        addInventoryListener(new InventoryListener() {
+            @Override
+            public void inventoryChanged(InventoryChange change) {
+                streamsChanged();
+            }
+        });
+        m.rebalance();
+        return m;
+    }
+
+    /**
+     * @return The manager of the event streams, or null.
+     */
+    public StreamManager getStreamManager() {
+        return streamManager;
+    }
+
+    /**
+     * Start a thread reading an event stream, it is stopped with the Cloud.
+     *
+     * @param path Path of the stream.
+     * @return The reader.
+     * @throws IOException If the Cloud is closed.
+     */
+    PublishedReader startReader(String path) throws IOException {
+        PublishedReader r = new PublishedReader(path);
+        synchronized (readers) {
+            if (closed) {
+                throw new IOException("Cloud is closed");
+            }
+            readers.add(r);
+        }
+        r.thread.start();
+        return r;
+    }
+
+    /**
+     * Stop a thread started by {@link #startReader}.
+     *
+     * @param r The reader.
+     */
+    void stopReader(PublishedReader r) {
+        r.stopped = true;
+        r.stop();
+        synchronized (readers) {
+            // after closing the list belongs to close()
+            if (!closed) {
+                readers.remove(r);
+            }
+        }
+    }
+
+    /**
+     * Open an event stream on an engine, it is closed with the Cloud.
+     *
+     * @param engine The engine.
+     * @param path Path of the stream.
+     * @return The stream.
+     * @throws IOException If the Cloud or engine is closed or the URL cannot
+     * be used.
+     */
+    StreamEngine.Stream openStream(StreamEngine engine, String path) throws IOException {
+        String base = StreamEngine.baseUrl(transport);
+        if (null == base) {
+            throw new IOException("No HttpTransport to get the URL from");
+        }
+        synchronized (readers) {
+            if (closed) {
+                throw new IOException("Cloud is closed");
+            }
+            StreamEngine.Stream s = engine.open(this, base + path, accessToken);
+            streams.add(s);
+            return s;
+        }
+    }
+
+    /**
+     * Close a stream opened by {@link #openStream}.
+     *
+     * @param s The stream.
+     */
+    void closeStream(StreamEngine.Stream s) {
+        s.close();
+        synchronized (readers) {
+            if (!closed) {
+                streams.remove(s);
+            }
+        }
+    }
+
+    /**
+     * Read published events from a stream and dispatch them, until the stream
+     * ends.
+     *
+     * @param is The event stream, will be closed.
+     * @throws IOException On errors reading the stream.
+     */
+    void readEvents(InputStream is) throws IOException {
+        new SseDecoder(new EventParser(this)).read(is);
+    }
+
+    /**
+     * Find the name of a device.
+     *
+     * @param coreId Id of the device.
+     * @return The name or "?" if it is not one of ours.
+     */
+    String deviceName(String coreId) {
+        Device d = deviceById(coreId);
+        return null == d ? "?" : d.name;
+    }
+
+    /**
+     * Find one of your devices by id.
+     *
+     * @param id Id of the device.
+     * @return The device or null if it is not one of yours.
+     */
+    public Device deviceById(String id) {
+        Device d = devicesById.get(id);
+        if (null != d || unknownIds.contains(id)) {
+            return d;
+        }
+        if (unknownIds.size() >= MAX_UNKNOWN_IDS) {
+            // start over rather than stop remembering
+            unknownIds.clear();
+        }
+        unknownIds.add(id);
+        return null;
+    }
+
+    /**
+     * Find one of your devices by name.
+     */
+    Device device(String name) {
+        return snapshot.get(name);
+    }
+
+    /**
+     * Apply the outcome of a refresh as one change.
+     *
+     * @param fresh Devices as they are now.
+     * @param complete If true devices not in fresh are gone.
+     * @param gone Ids of devices that are gone.
+     * @return What changed.
+     */
+    private InventoryChange apply(Collection<Device> fresh, boolean complete, Collection<String> gone) {
+        ArrayList<Device> added = new ArrayList<>();
+        ArrayList<Device> removed = new ArrayList<>();
+        ArrayList<Device> changed = new ArrayList<>();
+        InventoryChange change;
+        synchronized (devices) {
+            HashMap<String, Device> before = new HashMap<>();
+            for (Device d : devices.values()) {
+                before.put(d.id, d);
+            }
+            HashMap<String, Device> after = complete ? new HashMap<String, Device>() : new HashMap<>(before);
+            for (String id : gone) {
+                after.remove(id);
+            }
+            for (Device d : fresh) {
+                Device was = before.get(d.id);
+                if (null == was) {
+                    added.add(d);
+                } else if (!was.sameAs(d)) {
+                    changed.add(d);
                 }
+                after.put(d.id, d);
             }
+            for (Device d : before.values()) {
+                if (!after.containsKey(d.id)) {
+                    removed.add(d);
+                }
+            }
+            ((DeviceMap) devices).replace(after.values());
+            snapshot = Collections.unmodifiableSortedMap(new TreeMap<>(devices));
+            devicesById = new ConcurrentHashMap<>(after);
+            unknownIds.clear();
+            change = new InventoryChange(added, removed, changed, snapshot);
         }
+        if (!change.isEmpty()) {
+            for (InventoryListener l : inventoryListeners) {
+                try {
+                    l.inventoryChanged(change);
+                } catch (Exception ex) {
+                    Logger.getLogger(Cloud.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return change;
+    }
+
+    /**
+     * Dispatch an event read from a stream, unless it arrived before on
+     * another stream.
+     *
+     * @param e The event.
+     */
+    void received(Event e) {
+        received(e, null);
+    }
+
+    /**
+     * Dispatch an event read from a stream, unless it arrived before on
+     * another stream.
+     *
+     * @param e The event.
+     * @param resume Null to wait for subscribers with a full queue, else see
+     * {@link Subscription#deliver}.
+     * @return false if the stream should hold off until resume runs.
+     */
+    boolean received(Event e, Runnable resume) {
+        StreamManager m = streamManager;
+        if (null == m || m.admit(e)) {
+            return dispatch(e, resume);
+        }
+        return true;
+    }
+
+    /**
+     * Hand an event to all interested subscribers.
+     *
+     * @param e The event.
+     */
+    void dispatch(Event e) {
+        dispatch(e, null);
+    }
+
+    /**
+     * Hand an event to all interested subscribers.
+     *
+     * @param e The event.
+     * @param resume Null to wait for subscribers with a full queue, else see
+     * {@link Subscription#deliver}.
+     * @return false if the caller should hold off until resume runs.
+     */
+    boolean dispatch(Event e, Runnable resume) {
+        eventsReceived.increment();
+        EventJournal j = eventJournal;
+        if (null != j) {
+            try {
+                j.append(e);
+            } catch (IOException ex) {
+                Logger.getLogger(Cloud.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        EventHistory h = eventHistory;
+        if (null != h) {
+            try {
+                h.record(e);
+            } catch (RuntimeException ex) {
+                // the subscribers still get the event
+                Logger.getLogger(Cloud.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return subscriptions.dispatch(e, dispatch, resume);
+    }
+
+    /**
+     * @return Where blocking I/O for this Cloud runs, like the host lookups
+     * of its streams.
+     */
+    Executor calls() {
+        return calls;
+    }
+
+    /**
+     * Wait until all events are delivered.
+     *
+     * @param timeout Milliseconds to wait at most.
+     * @return true if the call-backs are done.
+     */
+    boolean awaitIdle(long timeout) {
+        return dispatch.awaitIdle(timeout);
+    }
+
+    /**
+     * How busy the executors are.
+     *
+     * @return Calls, dispatch and polling, in that order.
+     */
+    public List<BulkheadStats> bulkheadStats() {
+        ArrayList<BulkheadStats> ret = new ArrayList<>();
+        for (Bulkhead b : new Bulkhead[]{calls, dispatch, polling}) {
+            ret.add(b.stats());
+        }
+        return ret;
+    }
+
+    /**
+     * Close with {@link #DEFAULT_CLOSE_TIMEOUT}, see {@link #close(long)}.
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Stop reading the event streams and polling, let the work in progress
+     * finish and shut the executors down: first polling, then calls, then
+     * dispatch, so the events already read are still delivered. Work still
+     * running at the timeout is interrupted. Calls after this are rejected.
+     * <p>
+     * The MBeans of the metrics are unregistered. The transport, journal,
+     * history and cache are not closed, they may be shared.
+     *
+     * @param timeout Milliseconds to wait for the work in progress.
+     * @return true if all work finished in time.
+     */
+    public boolean close(long timeout) {
+        synchronized (readers) {
+            if (closed) {
+                return true;
+            }
+            closed = true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        StreamManager m = streamManager;
+        if (null != m) {
+            m.close();
+        }
+        for (PublishedReader r : readers) {
+            r.stop();
+        }
+        for (StreamEngine.Stream s : streams) {
+            s.close();
+        }
+        synchronized (polls) {
+            for (PollEngine.Task t : polls.values()) {
+                t.cancel(false);
+            }
+            polls.clear();
+        }
+        pollEngine.shutdown();
+        boolean ret = polling.drain(remaining(deadline));
+        ret &= calls.drain(remaining(deadline));
+        ret &= dispatch.drain(remaining(deadline));
+        // or a new Cloud of the same name could not register them
+        metrics.unregisterMBeans();
+        for (PublishedReader r : readers) {
+            try {
+                r.thread.join(Math.max(1, remaining(deadline)));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            ret &= !r.thread.isAlive();
+        }
+        return ret;
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Make the state of the pools, queues and streams visible in the metrics.
+     */
+    private void addGauges() {
+        for (final Bulkhead b : new Bulkhead[]{calls, dispatch, polling}) {
+            metrics.gauge("bulkhead." + b.name + ".active", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return b.stats().active;
+                }
+            });
+            metrics.gauge("bulkhead." + b.name + ".queued", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return b.stats().queued;
+                }
+            });
+        }
+        metrics.gauge("poll.backlog", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return polling.stats().queued;
+            }
+        });
+        metrics.gauge("polls", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (polls) {
+                    return polls.size();
+                }
+            }
+        });
+        metrics.gauge("devices", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return snapshot.size();
+            }
+        });
+        metrics.gauge("subscriptions", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return subscriptions.all().size();
+            }
+        });
+        metrics.gauge("subscriptions.depth", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long n = 0;
+                for (Subscription s : subscriptions.all()) {
+                    n += s.depth();
+                }
+                return n;
+            }
+        });
+        metrics.gauge("events.delivered", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long n = 0;
+                for (Subscription s : subscriptions.all()) {
+                    n += s.delivered();
+                }
+                return n;
+            }
+        });
+        metrics.gauge("events.dropped", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long n = 0;
+                for (Subscription s : subscriptions.all()) {
+                    n += s.dropped();
+                }
+                return n;
+            }
+        });
+        metrics.gauge("connections.inUse", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return transport.stats().inUse;
+            }
+        });
+        metrics.gauge("streams.open", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return transport.stats().openStreams;
+            }
+        });
     }
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+
+/**
+ * The cloud answered, but not with 200.
+ *
+ * @author walter
+ */
+public class CloudException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * HTTP status code.
+     */
+    public final int code;
+
+    public CloudException(String message, int code) {
+        super(message + ": " + code);
+        this.code = code;
+    }
+}
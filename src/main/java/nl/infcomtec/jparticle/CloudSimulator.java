@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A local stand-in for the Particle cloud, for load and latency testing
+ * without a network.
+ * <p>
+ * Serves a synthetic fleet of devices: the device list, single devices,
+ * variable reads, function calls, publishing and the event streams. Each
+ * device has the variables "temp" (double), "count" (int), "on" (boolean) and
+ * "label" (String) and the functions "led" and "reset". Any access token is
+ * accepted.
+ * <p>
+ * Use it like this:
+ * <pre>
+ *      CloudSimulator sim = new CloudSimulator(0, 100, 50.0, 20);
+ *      sim.start();
+ *      Cloud c = new Cloud("token", sim.baseUrl(), true, false);
+ * </pre> Or run it from the command line with the arguments port, number of
+ * devices, events per second and latency in milliseconds.
+ *
+ * @author walter
+ */
+public class CloudSimulator {
+
+    /**
+     * Names of the events the fleet publishes.
+     */
+    public static final String[] EVENT_NAMES = {"sim/temp", "sim/status", "sim/motion"};
+    /**
+     * Events queued per stream; a stream that falls further behind is
+     * closed, like the real cloud does with a client that does not read.
+     */
+    public static final int STREAM_QUEUE = 10000;
+    private final int port;
+    private final int deviceCount;
+    private final List<JSONObject> fleet = new ArrayList<>();
+    private final Map<String, JSONObject> byId = new LinkedHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong slowStreams = new AtomicLong();
+    private final Random random = new Random(42);
+    private volatile double eventsPerSecond;
+    private volatile long latency;
+    private volatile int rateLimit;
+    private final Set<String> failing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Start of the current second and requests in it, guarded by this.
+     */
+    private long window;
+    private int inWindow;
+    private HttpServer server;
+    private ExecutorService handlers;
+    private Thread generator;
+
+    /**
+     * Constructor.
+     *
+     * @param port Port to listen on, 0 picks a free one.
+     * @param deviceCount Number of devices in the fleet.
+     * @param eventsPerSecond Events published by the whole fleet per second,
+     * 0 for none.
+     * @param latency Milliseconds added to each request.
+     */
+    public CloudSimulator(int port, int deviceCount, double eventsPerSecond, long latency) {
+        this.port = port;
+        this.deviceCount = deviceCount;
+        this.eventsPerSecond = eventsPerSecond;
+        this.latency = latency;
+        String now = format(System.currentTimeMillis());
+        for (int i = 0; i < deviceCount; i++) {
+            JSONObject d = new JSONObject();
+            d.put("id", deviceId(i));
+            d.put("name", deviceName(i));
+            d.put("cellular", i % 4 == 0);
+            d.put("platform_id", i % 4 == 0 ? 10 : 6);
+            d.put("product_id", i % 4 == 0 ? 10 : 6);
+            d.put("status", "normal");
+            d.put("connected", true);
+            d.put("last_app", "");
+            d.put("last_heard", now);
+            d.put("last_ip_address", "10.0." + ((i >> 8) & 255) + "." + (i & 255));
+            d.put("system_firmware_version", "0.7.0");
+            d.put("cc3000_patch_version", "wl0: Nov  7 2014 16:03:45 version 5.90.230.12 FWID 01-63f2cd7a");
+            d.put("functions", new JSONArray().put("led").put("reset"));
+            d.put("variables", new JSONObject().put("temp", "double").put("count", "int").put("on", "bool").put("label", "string"));
+            fleet.add(d);
+            byId.put(deviceId(i), d);
+        }
+    }
+
+    /**
+     * Id of a simulated device.
+     *
+     * @param i Index in the fleet.
+     * @return The device id, 24 hex digits like the real ones.
+     */
+    public static String deviceId(int i) {
+        return String.format("%024x", 0x5100000L + i);
+    }
+
+    /**
+     * Name of a simulated device.
+     *
+     * @param i Index in the fleet.
+     * @return The device name.
+     */
+    public static String deviceName(int i) {
+        return String.format("sim_%05d", i);
+    }
+
+    /**
+     * Start serving.
+     *
+     * @throws IOException If the port can not be used.
+     */
+    public synchronized void start() throws IOException {
+        if (null == System.getProperty("sun.net.httpserver.nodelay")) {
+            // else Nagle and delayed ACKs add 40 ms to every request
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.createContext("/v1/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange he) throws IOException {
+                try {
+                    serve(he);
+                } catch (Exception ex) {
+                    reply(he, 500, new JSONObject().put("error", ex.toString()));
+                }
+            }
+        });
+        server.start();
+        generator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                generate();
+            }
+        }, "CloudSimulator:events");
+        generator.setDaemon(true);
+        generator.start();
+    }
+
+    /**
+     * Stop serving, also closes all event streams.
+     */
+    public synchronized void stop() {
+        if (null != generator) {
+            generator.interrupt();
+            generator = null;
+        }
+        for (Listener l : listeners) {
+            l.close();
+        }
+        listeners.clear();
+        if (null != server) {
+            server.stop(0);
+            handlers.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return The URL to give to the Cloud.
+     */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param eventsPerSecond Events published by the whole fleet per second.
+     */
+    public void setEventsPerSecond(double eventsPerSecond) {
+        this.eventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * @param latency Milliseconds added to each request.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Answer 429 (Too Many Requests) like the real cloud does when going too
+     * fast.
+     *
+     * @param perSecond Requests allowed per second, 0 for no limit.
+     */
+    public void setRateLimit(int perSecond) {
+        this.rateLimit = perSecond;
+    }
+
+    /**
+     * Make a device time out, like one that lost its connection without the
+     * cloud noticing yet.
+     *
+     * @param deviceId Id of the device.
+     * @param fail If true variable reads and function calls get a 408.
+     */
+    public void setFailing(String deviceId, boolean fail) {
+        if (fail) {
+            failing.add(deviceId);
+        } else {
+            failing.remove(deviceId);
+        }
+    }
+
+    /**
+     * Connect or disconnect a device, as seen in the device list.
+     *
+     * @param deviceId Id of the device.
+     * @param connected The new state.
+     */
+    public void setConnected(String deviceId, boolean connected) {
+        JSONObject dev = byId.get(deviceId);
+        if (null != dev) {
+            dev.put("connected", connected);
+        }
+    }
+
+    /**
+     * @return Number of requests served, event streams not included.
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of events sent to the streams.
+     */
+    public long events() {
+        return events.get();
+    }
+
+    /**
+     * @return Number of event streams closed because they fell behind.
+     */
+    public long slowStreams() {
+        return slowStreams.get();
+    }
+
+    /**
+     * @return Number of open event streams.
+     */
+    public int streams() {
+        return listeners.size();
+    }
+
+    /**
+     * Publish an event as if a device did, on all streams. Only queues it,
+     * every stream is written by a thread of its own.
+     *
+     * @param coreId Device id, "api" for events published through the API.
+     * @param name Event name.
+     * @param data Event data.
+     * @param ttl Time to live in seconds.
+     */
+    public void publish(String coreId, String name, String data, int ttl) {
+        JSONObject jo = new JSONObject();
+        jo.put("data", data);
+        jo.put("ttl", ttl);
+        jo.put("published_at", format(System.currentTimeMillis()));
+        jo.put("coreid", coreId);
+        byte[] bytes = ("event: " + name + "\ndata: " + jo + "\n\n").getBytes(StandardCharsets.UTF_8);
+        events.incrementAndGet();
+        for (Listener l : listeners) {
+            if (l.wants(coreId, name)) {
+                l.send(bytes);
+            }
+        }
+    }
+
+    private void serve(HttpExchange he) throws IOException {
+        String path = he.getRequestURI().getPath();
+        String[] parts = path.substring(1).split("/");
+        String method = he.getRequestMethod();
+        // parts[0] is "v1"
+        if (parts.length >= 2 && parts[1].equals("events") && method.equals("GET")) {
+            listen(he, null, rest(parts, 2));
+            return;
+        }
+        if (parts.length < 2 || !parts[1].equals("devices")) {
+            reply(he, 404, new JSONObject().put("error", "not found"));
+            return;
+        }
+        if (!isStream(parts, method) && overLimit()) {
+            he.getResponseHeaders().set("Retry-After", "1");
+            reply(he, 429, new JSONObject().put("error", "Too many requests"));
+            return;
+        }
+        if (parts.length >= 3 && parts[2].equals("events")) {
+            if (method.equals("POST")) {
+                delay();
+                Map<String, String> form = form(he);
+                publish("api", form.get("name"), form.containsKey("data") ? form.get("data") : "",
+                        form.containsKey("ttl") ? Integer.parseInt(form.get("ttl")) : 60);
+                reply(he, 200, new JSONObject().put("ok", true));
+            } else {
+                listen(he, null, rest(parts, 3));
+            }
+            return;
+        }
+        if (parts.length >= 4 && parts[3].equals("events") && method.equals("GET")) {
+            listen(he, parts[2], rest(parts, 4));
+            return;
+        }
+        delay();
+        requests.incrementAndGet();
+        if (parts.length == 2) {
+            reply(he, 200, new JSONArray(fleet));
+            return;
+        }
+        JSONObject dev = byId.get(parts[2]);
+        if (null == dev) {
+            reply(he, 404, new JSONObject().put("error", "Permission denied"));
+            return;
+        }
+        if (parts.length == 3) {
+            reply(he, 200, dev);
+            return;
+        }
+        if (failing.contains(parts[2])) {
+            reply(he, 408, new JSONObject().put("ok", false).put("error", "Timed out."));
+            return;
+        }
+        String name = parts[3];
+        if (method.equals("POST")) {
+            if (!dev.getJSONArray("functions").toList().contains(name)) {
+                reply(he, 404, new JSONObject().put("ok", false).put("error", "Function " + name + " not found"));
+                return;
+            }
+            String args = form(he).get("args");
+            JSONObject jo = new JSONObject();
+            jo.put("id", dev.getString("id"));
+            jo.put("last_app", "");
+            jo.put("connected", true);
+            jo.put("return_value", null == args ? 0 : args.length());
+            reply(he, 200, jo);
+            return;
+        }
+        Object value;
+        switch (name) {
+            case "temp":
+                value = 15 + random.nextInt(1000) / 100.0;
+                break;
+            case "count":
+                value = (int) (requests.get() & 0xFFFF);
+                break;
+            case "on":
+                value = random.nextBoolean();
+                break;
+            case "label":
+                value = dev.getString("name");
+                break;
+            default:
+                reply(he, 404, new JSONObject().put("ok", false).put("error", "Variable not found"));
+                return;
+        }
+        JSONObject core = new JSONObject();
+        core.put("last_app", "");
+        core.put("last_heard", format(System.currentTimeMillis()));
+        core.put("connected", true);
+        core.put("last_handshake_at", dev.getString("last_heard"));
+        core.put("deviceID", dev.getString("id"));
+        core.put("product_id", dev.getInt("product_id"));
+        JSONObject jo = new JSONObject();
+        jo.put("cmd", "VarReturn");
+        jo.put("name", name);
+        jo.put("result", value);
+        jo.put("coreInfo", core);
+        reply(he, 200, jo);
+    }
+
+    /**
+     * The event name prefix of a stream, it may contain slashes.
+     */
+    private static String rest(String[] parts, int from) {
+        return parts.length > from ? String.join("/", Arrays.asList(parts).subList(from, parts.length)) : null;
+    }
+
+    private void listen(HttpExchange he, String deviceId, String prefix) throws IOException {
+        he.getResponseHeaders().set("Content-Type", "text/event-stream");
+        he.sendResponseHeaders(200, 0);
+        Listener l = new Listener(he, deviceId, prefix);
+        l.send(":ok\n\n".getBytes(StandardCharsets.UTF_8));
+        listeners.add(l);
+        handlers.execute(l);
+    }
+
+    private void generate() {
+        long next = System.nanoTime();
+        int i = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            double rate = eventsPerSecond;
+            if (rate <= 0 || deviceCount == 0) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                next = System.nanoTime();
+                continue;
+            }
+            next += (long) (1e9 / rate);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            int d = random.nextInt(deviceCount);
+            String name = EVENT_NAMES[i++ % EVENT_NAMES.length];
+            publish(deviceId(d), name, Integer.toString(random.nextInt(1000)), 60);
+        }
+    }
+
+    private static boolean isStream(String[] parts, String method) {
+        if (!method.equals("GET")) {
+            return false;
+        }
+        return (parts.length >= 2 && parts[1].equals("events"))
+                || (parts.length >= 3 && parts[2].equals("events"))
+                || (parts.length >= 4 && parts[3].equals("events"));
+    }
+
+    private synchronized boolean overLimit() {
+        if (rateLimit <= 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - window >= 1000) {
+            window = now;
+            inWindow = 0;
+        }
+        return ++inWindow > rateLimit;
+    }
+
+    private void delay() {
+        Sleep.sleep(latency);
+    }
+
+    private static Map<String, String> form(HttpExchange he) throws IOException {
+        Map<String, String> ret = new LinkedHashMap<>();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream is = he.getRequestBody()) {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = is.read(buf)) >= 0) {
+                bos.write(buf, 0, n);
+            }
+        }
+        for (String kv : new String(bos.toByteArray(), StandardCharsets.UTF_8).split("&")) {
+            int eq = kv.indexOf('=');
+            if (eq > 0) {
+                ret.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"), URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return ret;
+    }
+
+    private static void reply(HttpExchange he, int code, Object json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        he.getResponseHeaders().set("Content-Type", "application/json");
+        he.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = he.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String format(long millis) {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(new Date(millis));
+    }
+
+    /**
+     * An open event stream, with its own queue and writer, so a client that
+     * stalls holds up no one else.
+     */
+    private class Listener implements Runnable {
+
+        private final HttpExchange he;
+        private final OutputStream os;
+        private final String deviceId;
+        private final String prefix;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(STREAM_QUEUE);
+        private volatile boolean closed;
+
+        Listener(HttpExchange he, String deviceId, String prefix) {
+            this.he = he;
+            this.os = he.getResponseBody();
+            this.deviceId = deviceId;
+            this.prefix = prefix;
+        }
+
+        boolean wants(String coreId, String name) {
+            if (null != deviceId && !deviceId.equals(coreId)) {
+                return false;
+            }
+            return null == prefix || name.startsWith(prefix);
+        }
+
+        void send(byte[] bytes) {
+            if (!queue.offer(bytes) && !closed) {
+                slowStreams.incrementAndGet();
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            ArrayList<byte[]> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    for (byte[] b : batch) {
+                        os.write(b);
+                    }
+                    os.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException ex) {
+                // the client left or the simulator stopped
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            listeners.remove(this);
+            // wake the writer if it waits for an event
+            queue.offer(new byte[0]);
+            try {
+                // closing writes the end of the body, which a stalled client holds up
+                handlers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        he.close();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // stopped, the server closes the connection
+            }
+        }
+    }
+
+    /**
+     * Run the simulator until killed.
+     *
+     * @param args port, devices, events per second, latency in milliseconds.
+     * @throws Exception If it can not start.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        CloudSimulator sim = new CloudSimulator(port, devices, rate, latency);
+        sim.start();
+        System.out.println("Simulating " + devices + " devices at " + sim.baseUrl());
+    }
+}
@@ -4,19 +4,20 @@
  */
 package nl.infcomtec.jparticle;
 
-import java.io.DataOutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.HttpsURLConnection;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 /**
  * Represents a Device.
@@ -34,11 +35,24 @@ public class Device {
      * @throws Exception Probably if something did not work.
      */
     public static Device getDevice(String deviceId, String accessToken) throws Exception {
-        URL url = new URL("https://api.particle.io/v1/devices/" + deviceId);
-        URLConnection conn = url.openConnection();
-        conn.setRequestProperty("Authorization", accessToken);
-        conn.connect();
-        return new Device(new JSONObject(new JSONTokener(conn.getInputStream())));
+        return getDevice(deviceId, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Obtain a device by directly calling the cloud.
+     *
+     * @param deviceId Device ID
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return A Device.
+     * @throws Exception Probably if something did not work.
+     */
+    public static Device getDevice(String deviceId, String accessToken, Transport transport) throws Exception {
+        Response resp = transport.exchange("GET", "/v1/devices/" + deviceId, accessToken, null);
+        if (!resp.isOk()) {
+            throw new CloudException("Getting device " + deviceId + " failed", resp.code);
+        }
+        return new Device(new JSONObject(resp.tokener()));
     }
 
     /**
@@ -49,14 +63,50 @@ public class Device {
      * @throws Exception Probably if something did not work.
      */
     public static ArrayList<Device> getDevices(String accessToken) throws Exception {
-        URL url = new URL("https://api.particle.io/v1/devices");
-        URLConnection conn = url.openConnection();
-        conn.setRequestProperty("Authorization", accessToken);
-        conn.connect();
-        JSONArray ja = new JSONArray(new JSONTokener(conn.getInputStream()));
+        return getDevices(accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Get all your devices.
+     *
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return A list of Devices.
+     * @throws Exception Probably if something did not work.
+     */
+    public static ArrayList<Device> getDevices(String accessToken, Transport transport) throws Exception {
+        return getDevices(accessToken, transport, Collections.<String, Device>emptyMap());
+    }
+
+    /**
+     * Get all your devices. The list may leave out the variables and
+     * functions, those are then taken from the known device.
+     *
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @param known Devices we already have, by id.
+     * @return A list of Devices.
+     * @throws Exception Probably if something did not work.
+     */
+    static ArrayList<Device> getDevices(String accessToken, Transport transport, Map<String, Device> known) throws Exception {
+        Response resp = transport.exchange("GET", "/v1/devices", accessToken, null);
+        if (!resp.isOk()) {
+            throw new CloudException("Getting devices failed", resp.code);
+        }
+        JSONArray ja = new JSONArray(resp.tokener());
         ArrayList<Device> ret = new ArrayList<>();
         for (int i = 0; i < ja.length(); i++) {
-            ret.add(new Device(ja.getJSONObject(i)));
+            JSONObject o = ja.getJSONObject(i);
+            Device was = known.get(o.optString("id"));
+            if (null != was) {
+                if (o.isNull("variables") && null != was.variables) {
+                    o.put("variables", was.variables);
+                }
+                if (o.isNull("functions") && null != was.functions) {
+                    o.put("functions", was.functions);
+                }
+            }
+            ret.add(new Device(o));
         }
         return ret;
     }
@@ -107,14 +157,38 @@ public class Device {
      * @return The boolean value.
      */
     public Boolean readBoolean(String name, String accessToken) {
+        return readBoolean(name, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Request a boolean variable.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return The boolean value.
+     */
+    public Boolean readBoolean(String name, String accessToken, Transport transport) {
         try {
-            return (Boolean) readAny(name, accessToken);
+            return (Boolean) readAny(name, accessToken, transport);
         } catch (Exception ex) {
-            Logger.getLogger(Device.class.getName()).log(Level.SEVERE, null, ex);
+            readFailed(ex);
         }
         return null;
     }
 
+    /**
+     * Log a failed read. An open breaker was logged when it opened, so the
+     * reads it refuses are only logged at FINE, without a stack trace.
+     */
+    static void readFailed(Exception ex) {
+        if (ex instanceof CircuitOpenException) {
+            Logger.getLogger(Device.class.getName()).log(Level.FINE, ex.getMessage());
+        } else {
+            Logger.getLogger(Device.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     private void updateFields(JSONObject jo) {
         try {
             JSONObject core = jo.getJSONObject("coreInfo");
@@ -130,6 +204,27 @@ public class Device {
         }
     }
 
+    /**
+     * Compare with another copy of this device, see {@link InventoryChange}.
+     *
+     * @param other The other copy.
+     * @return true if nothing but the last heard time differs.
+     */
+    boolean sameAs(Device other) {
+        return id.equals(other.id)
+                && Objects.equals(name, other.name)
+                && connected == other.connected
+                && Objects.equals(status, other.status)
+                && Objects.equals(lastApp, other.lastApp)
+                && Objects.equals(lastIPAddress, other.lastIPAddress)
+                && Objects.equals(systemFirmwareVersion, other.systemFirmwareVersion)
+                && cellular == other.cellular
+                && platformId == other.platformId
+                && productId == other.productId
+                && (null == variables ? null == other.variables : variables.similar(other.variables))
+                && (null == functions ? null == other.functions : functions.similar(other.functions));
+    }
+
     @Override
     public String toString() {
         return "Device{"
@@ -159,6 +254,18 @@ public class Device {
         return getDevice(id, accessToken);
     }
 
+    /**
+     * Get a fresh copy of this device.
+     *
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud.
+     * @return A new Device with the most recent values for the fields.
+     * @throws Exception
+     */
+    public Device refresh(String accessToken, Transport transport) throws Exception {
+        return getDevice(id, accessToken, transport);
+    }
+
     /**
      * Call a function on this device.
      *
@@ -169,19 +276,24 @@ public class Device {
      * @throws Exception On more serious failures.
      */
     public Integer callFunction(String functionName, String arg, String accessToken) throws Exception {
-        URL url = new URL("https://api.particle.io/v1/devices/" + id + "/" + functionName);
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Authorization", accessToken);
-        conn.setDoOutput(true);
-        try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
-            wr.writeBytes("args=");
-            wr.writeBytes(URLEncoder.encode(arg, "UTF-8"));
-            wr.flush();
-        }
-        int resp = conn.getResponseCode();
-        if (resp == 200) {
-            JSONObject jo = new JSONObject(new JSONTokener(conn.getInputStream()));
+        return callFunction(functionName, arg, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Call a function on this device.
+     *
+     * @param functionName The name of the function to call.
+     * @param arg The argument(s) for the function.
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud.
+     * @return The value the function returned or null on some failures.
+     * @throws Exception On more serious failures.
+     */
+    public Integer callFunction(String functionName, String arg, String accessToken, Transport transport) throws Exception {
+        Response resp = transport.exchange("POST", "/v1/devices/" + id + "/" + functionName, accessToken,
+                "args=" + URLEncoder.encode(arg, "UTF-8"));
+        if (resp.isOk()) {
+            JSONObject jo = new JSONObject(resp.tokener());
             if (!jo.getString("id").equals(id)) {
                 throw new Exception("Got a response for another device?");
             }
@@ -192,6 +304,40 @@ public class Device {
         return null;
     }
 
+    /**
+     * Call a function on this device without waiting.
+     *
+     * @param functionName The name of the function to call.
+     * @param arg The argument(s) for the function.
+     * @param accessToken Your access token.
+     * @param transport How to reach the cloud, best an {@link AsyncTransport}.
+     * @return The value the function returned, null if the cloud did not
+     * answer 200; completes exceptionally on other failures.
+     */
+    public CompletableFuture<Integer> callFunctionAsync(String functionName, String arg, String accessToken, Transport transport) {
+        String form;
+        try {
+            form = "args=" + URLEncoder.encode(arg, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return Async.failed(ex);
+        }
+        return Async.exchange(transport, "POST", "/v1/devices/" + id + "/" + functionName, accessToken, form).thenApply(new Function<Response, Integer>() {
+            @Override
+            public Integer apply(Response resp) {
+                if (!resp.isOk()) {
+                    return null;
+                }
+                JSONObject jo = new JSONObject(resp.tokener());
+                if (!jo.getString("id").equals(id)) {
+                    throw new IllegalStateException("Got a response for another device?");
+                }
+                lastApp = jo.getString("last_app");
+                connected = jo.getBoolean("connected");
+                return jo.getInt("return_value");
+            }
+        });
+    }
+
     /**
      * Request an integer variable.
      *
@@ -200,10 +346,22 @@ public class Device {
      * @return The integer value.
      */
     public Integer readInt(String name, String accessToken) {
+        return readInt(name, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Request an integer variable.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return The integer value.
+     */
+    public Integer readInt(String name, String accessToken, Transport transport) {
         try {
-            return (Integer) readAny(name, accessToken);
+            return (Integer) readAny(name, accessToken, transport);
         } catch (Exception ex) {
-            Logger.getLogger(Device.class.getName()).log(Level.SEVERE, null, ex);
+            readFailed(ex);
         }
         return null;
     }
@@ -216,10 +374,22 @@ public class Device {
      * @return The String value.
      */
     public String readString(String name, String accessToken) {
+        return readString(name, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Request a String variable.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return The String value.
+     */
+    public String readString(String name, String accessToken, Transport transport) {
         try {
-            return "" + readAny(name, accessToken);
+            return "" + readAny(name, accessToken, transport);
         } catch (Exception ex) {
-            Logger.getLogger(Device.class.getName()).log(Level.SEVERE, null, ex);
+            readFailed(ex);
         }
         return null;
     }
@@ -232,10 +402,24 @@ public class Device {
      * @return The double value.
      */
     public Double readDouble(String name, String accessToken) {
+        return readDouble(name, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Request a double variable.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return The double value.
+     */
+    public Double readDouble(String name, String accessToken, Transport transport) {
         try {
-            return (Double) readAny(name, accessToken);
+            Object o = readAny(name, accessToken, transport);
+            // newer JSON versions return a BigDecimal for fractions
+            return o instanceof Number ? ((Number) o).doubleValue() : (Double) o;
         } catch (Exception ex) {
-            Logger.getLogger(Device.class.getName()).log(Level.SEVERE, null, ex);
+            readFailed(ex);
         }
         return null;
     }
@@ -249,18 +433,49 @@ public class Device {
      * @throws Exception On errors.
      */
     public Object readAny(String name, String accessToken) throws Exception {
-        URL url = new URL("https://api.particle.io/v1/devices/" + id + "/" + name);
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Authorization", accessToken);
-        conn.setDoOutput(false);
-        int resp = conn.getResponseCode();
-        if (resp == 200) {
-            JSONObject jo = new JSONObject(new JSONTokener(conn.getInputStream()));
+        return readAny(name, accessToken, ResilientTransport.getDefault());
+    }
+
+    /**
+     * Request a untyped variable.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud.
+     * @return The value, if any.
+     * @throws Exception On errors.
+     */
+    public Object readAny(String name, String accessToken, Transport transport) throws Exception {
+        Response resp = transport.exchange("GET", "/v1/devices/" + id + "/" + name, accessToken, null);
+        if (resp.isOk()) {
+            JSONObject jo = new JSONObject(resp.tokener());
             updateFields(jo);
             return jo.opt("result");
         }
         return null;
     }
 
+    /**
+     * Request a untyped variable without waiting.
+     *
+     * @param name Name of the variable.
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param transport How to reach the cloud, best an {@link AsyncTransport}.
+     * @return The value, null if the cloud did not answer 200; completes
+     * exceptionally on other failures.
+     */
+    public CompletableFuture<Object> readAnyAsync(String name, String accessToken, Transport transport) {
+        return Async.exchange(transport, "GET", "/v1/devices/" + id + "/" + name, accessToken, null).thenApply(new Function<Response, Object>() {
+            @Override
+            public Object apply(Response resp) {
+                if (!resp.isOk()) {
+                    return null;
+                }
+                JSONObject jo = new JSONObject(resp.tokener());
+                updateFields(jo);
+                return jo.opt("result");
+            }
+        });
+    }
+
 }
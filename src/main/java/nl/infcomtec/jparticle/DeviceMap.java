@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The map of {@link Cloud#devices}: read-only to everyone, only a refresh of
+ * the Cloud replaces its contents. So the indexes the Cloud derives from it
+ * cannot go stale by a change made past them.
+ * <p>
+ * Every method that changes the map, also through its views, entries and
+ * sub maps, throws {@link UnsupportedOperationException}.
+ *
+ * @author walter
+ */
+final class DeviceMap extends TreeMap<String, Device> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Replace the contents, with the map locked.
+     *
+     * @param fresh The devices as they are now.
+     */
+    void replace(Collection<Device> fresh) {
+        super.clear();
+        for (Device d : fresh) {
+            super.put(d.name, d);
+        }
+    }
+
+    @Override
+    public Device put(String key, Device value) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Device> map) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device remove(Object key) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Map.Entry<String, Device> pollFirstEntry() {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Map.Entry<String, Device> pollLastEntry() {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device putIfAbsent(String key, Device value) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public boolean replace(String key, Device oldValue, Device newValue) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device replace(String key, Device value) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super Device, ? extends Device> function) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device computeIfAbsent(String key, Function<? super String, ? extends Device> mappingFunction) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device computeIfPresent(String key, BiFunction<? super String, ? super Device, ? extends Device> remappingFunction) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device compute(String key, BiFunction<? super String, ? super Device, ? extends Device> remappingFunction) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Device merge(String key, Device value, BiFunction<? super Device, ? super Device, ? extends Device> remappingFunction) {
+        throw new UnsupportedOperationException("The devices are changed by a refresh");
+    }
+
+    @Override
+    public Set<Map.Entry<String, Device>> entrySet() {
+        final Set<Map.Entry<String, Device>> entries = super.entrySet();
+        // the unmodifiable map also guards setValue of the entries
+        return Collections.unmodifiableMap(new AbstractMap<String, Device>() {
+            @Override
+            public Set<Map.Entry<String, Device>> entrySet() {
+                return entries;
+            }
+        }).entrySet();
+    }
+
+    @Override
+    public Collection<Device> values() {
+        return Collections.unmodifiableCollection(super.values());
+    }
+
+    @Override
+    public NavigableSet<String> navigableKeySet() {
+        return Collections.unmodifiableNavigableSet(super.navigableKeySet());
+    }
+
+    @Override
+    public NavigableSet<String> descendingKeySet() {
+        return Collections.unmodifiableNavigableSet(super.descendingKeySet());
+    }
+
+    @Override
+    public NavigableMap<String, Device> descendingMap() {
+        return Collections.unmodifiableNavigableMap(super.descendingMap());
+    }
+
+    @Override
+    public NavigableMap<String, Device> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+        return Collections.unmodifiableNavigableMap(super.subMap(fromKey, fromInclusive, toKey, toInclusive));
+    }
+
+    @Override
+    public NavigableMap<String, Device> headMap(String toKey, boolean inclusive) {
+        return Collections.unmodifiableNavigableMap(super.headMap(toKey, inclusive));
+    }
+
+    @Override
+    public NavigableMap<String, Device> tailMap(String fromKey, boolean inclusive) {
+        return Collections.unmodifiableNavigableMap(super.tailMap(fromKey, inclusive));
+    }
+}
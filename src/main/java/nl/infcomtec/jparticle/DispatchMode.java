@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * How events are handed to a subscriber.
+ *
+ * @author walter
+ */
+public enum DispatchMode {
+    /**
+     * As fast as possible, events may be handled in parallel and out of order,
+     * even those of one device.
+     */
+    UNORDERED,
+    /**
+     * Events of one device are handled one at a time, in the order they
+     * arrived; events of different devices are handled in parallel.
+     */
+    ORDERED_PER_DEVICE,
+    /**
+     * All events are handled one at a time, in the order they arrived.
+     */
+    SERIAL
+}
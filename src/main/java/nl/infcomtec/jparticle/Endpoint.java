@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * The kinds of requests made to the cloud.
+ *
+ * @author walter
+ */
+public enum Endpoint {
+    /**
+     * POST /v1/devices/{id}/{function}
+     */
+    FUNCTION_CALL(Priority.HIGH),
+    /**
+     * POST /v1/devices/events
+     */
+    PUBLISH(Priority.HIGH),
+    /**
+     * GET /v1/devices/{id}/{variable}
+     */
+    VARIABLE_READ(Priority.NORMAL),
+    /**
+     * GET /v1/devices/{id}
+     */
+    DEVICE_FETCH(Priority.BULK),
+    /**
+     * GET /v1/devices
+     */
+    DEVICE_LIST(Priority.BULK),
+    /**
+     * Any of the event streams.
+     */
+    EVENT_STREAM(Priority.BULK),
+    /**
+     * Anything else.
+     */
+    OTHER(Priority.BULK);
+
+    /**
+     * Lane in the {@link RateLimiter}.
+     */
+    public final Priority priority;
+
+    private Endpoint(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Find out what a request is.
+     *
+     * @param method HTTP method.
+     * @param path Path of the request, like "/v1/devices".
+     * @return The kind of request.
+     */
+    public static Endpoint classify(String method, String path) {
+        String[] parts = path.split("/");
+        // parts[0] is empty, parts[1] is "v1"
+        if (parts.length < 3 || !parts[2].equals("devices")) {
+            // "/v1/events" and "/v1/events/{prefix}"
+            return parts.length >= 3 && parts[2].equals("events") ? EVENT_STREAM : OTHER;
+        }
+        if (parts.length == 3) {
+            return DEVICE_LIST;
+        }
+        if (parts[3].equals("events")) {
+            return "POST".equals(method) ? PUBLISH : EVENT_STREAM;
+        }
+        if (parts.length == 4) {
+            return DEVICE_FETCH;
+        }
+        if (parts[4].equals("events")) {
+            return EVENT_STREAM;
+        }
+        return "POST".equals(method) ? FUNCTION_CALL : VARIABLE_READ;
+    }
+
+    /**
+     * Find out which device a request is for.
+     *
+     * @param path Path of the request, like "/v1/devices/{id}/temp".
+     * @return The device id, or null if the request is not for one device.
+     */
+    public static String deviceId(String path) {
+        String[] parts = path.split("/");
+        if (parts.length < 4 || !parts[2].equals("devices") || parts[3].equals("events")) {
+            return null;
+        }
+        return parts[3];
+    }
+}
@@ -20,6 +20,10 @@ public class Event {
     final public String data;
     final public Date publishedAt;
     final public long ttl;
+    /**
+     * System.nanoTime() when the event was made, for the dispatch lag.
+     */
+    final long received = System.nanoTime();
 
     public Event(final TreeMap<String, Device> devices, final String eventName, final JSONObject jo) {
         this.eventName = eventName;
@@ -36,6 +40,37 @@ public class Event {
         this.ttl = Math.min(60000L, _ttl);
     }
 
+    /**
+     * Constructor, finds the device name using the id index of the cloud.
+     *
+     * @param cloud Your cloud.
+     * @param eventName Name of the event.
+     * @param jo The data of the event.
+     */
+    public Event(final Cloud cloud, final String eventName, final JSONObject jo) {
+        this(cloud.deviceName(jo.getString("coreid")), eventName, jo.getString("coreid"), jo.getString("data"),
+                Cloud.parseDateTime(jo.getString("published_at")), jo.getLong("ttl"));
+    }
+
+    /**
+     * Constructor for events that were already taken apart.
+     *
+     * @param deviceName Name of the device, "?" if unknown.
+     * @param eventName Name of the event.
+     * @param coreId Id of the device.
+     * @param data Data of the event.
+     * @param publishedAt When it was published.
+     * @param ttl Time to live in seconds, as sent by the cloud.
+     */
+    Event(String deviceName, String eventName, String coreId, String data, Date publishedAt, long ttl) {
+        this.deviceName = deviceName;
+        this.eventName = eventName;
+        this.coreId = coreId;
+        this.data = data;
+        this.publishedAt = publishedAt;
+        this.ttl = Math.min(60000L, ttl * 1000L);
+    }
+
     public Date expires() {
         return new Date(publishedAt.getTime() + ttl);
     }
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recent events per device and event name, kept outside the heap, see
+ * {@link Cloud#setEventHistory}.
+ * <p>
+ * The memory budget is one direct buffer, cut in equal rings; every
+ * combination of device id and event name that is seen gets its own ring.
+ * When a ring is full its oldest events are overwritten. When all rings are in
+ * use the ring that was written to least recently is emptied and handed to the
+ * new combination. On the heap there is only a small object per ring; events
+ * are only turned back into {@link Event} objects when asked for.
+ * <p>
+ * A stored event takes 20 bytes plus its data in UTF-8. Events are kept in the
+ * order they arrived, the time queries use the time they were published.
+ *
+ * @author walter
+ */
+public class EventHistory {
+
+    /**
+     * Size of a ring if not specified.
+     */
+    public static final int DEFAULT_RING_BYTES = 16 * 1024;
+    /**
+     * Bytes per event besides the data.
+     */
+    private static final int OVERHEAD = 20;
+    /**
+     * Set in the stored time to live of an event without data.
+     */
+    private static final int NO_DATA = 0x80000000;
+    private final ByteBuffer memory;
+    private final int ringBytes;
+    private final int mask;
+    /**
+     * Rings by key, least recently written first; guarded by itself. Lock
+     * this before a ring, never the other way around.
+     */
+    private final LinkedHashMap<Key, Ring> rings = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Offsets of unused rings; guarded by rings.
+     */
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder overwritten = new LongAdder();
+    // statistics, guarded by rings
+    private long ringsRecycled;
+    private long tooBig;
+
+    /**
+     * Constructor.
+     *
+     * @param budget Bytes of memory to use at most.
+     * @param ringBytes Bytes per device and event name, rounded up to a power
+     * of two.
+     */
+    public EventHistory(long budget, int ringBytes) {
+        if (ringBytes < 64) {
+            throw new IllegalArgumentException("ringBytes must be at least 64");
+        }
+        int size = Integer.highestOneBit(ringBytes);
+        if (size < ringBytes) {
+            size <<= 1;
+        }
+        long count = budget / size;
+        if (count < 1 || count * size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("budget must hold at least one ring and at most 2 GB");
+        }
+        this.ringBytes = size;
+        this.mask = size - 1;
+        this.memory = ByteBuffer.allocateDirect((int) (count * size));
+        for (int i = 0; i < count; i++) {
+            free.add(i * size);
+        }
+    }
+
+    /**
+     * Store an event.
+     *
+     * @param e The event.
+     */
+    public void record(Event e) {
+        int dataLength = null == e.data ? 0 : utf8Length(e.data);
+        int length = OVERHEAD + dataLength;
+        Key key = new Key(e.coreId, e.eventName);
+        Ring ring;
+        while (true) {
+            synchronized (rings) {
+                if (length > ringBytes) {
+                    tooBig++;
+                    return;
+                }
+                ring = rings.get(key);
+                if (null == ring) {
+                    ring = new Ring(key, allocate());
+                    rings.put(key, ring);
+                }
+            }
+            synchronized (ring) {
+                if (ring.dead) {
+                    // recycled between the two locks, try again
+                    continue;
+                }
+                ring.deviceName = e.deviceName;
+                ring.append(e, dataLength, length);
+                stored.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the latest events.
+     *
+     * @param deviceId Id of the device, null for all devices.
+     * @param eventName Name of the event, null for all events.
+     * @param count Maximum number of events.
+     * @return The events, oldest first.
+     */
+    public List<Event> last(String deviceId, String eventName, int count) {
+        ArrayList<Event> ret = new ArrayList<>();
+        for (Ring ring : select(deviceId, eventName)) {
+            synchronized (ring) {
+                ring.collect(ret, Long.MIN_VALUE, Long.MAX_VALUE, count);
+            }
+        }
+        sort(ret);
+        return ret.size() > count ? new ArrayList<>(ret.subList(ret.size() - count, ret.size())) : ret;
+    }
+
+    /**
+     * Get the events published in a period.
+     *
+     * @param deviceId Id of the device, null for all devices.
+     * @param eventName Name of the event, null for all events.
+     * @param from Start of the period in milliseconds since the epoch.
+     * @param to End of the period (exclusive) in milliseconds since the epoch.
+     * @return The events, oldest first.
+     */
+    public List<Event> range(String deviceId, String eventName, long from, long to) {
+        ArrayList<Event> ret = new ArrayList<>();
+        for (Ring ring : select(deviceId, eventName)) {
+            synchronized (ring) {
+                ring.collect(ret, from, to, Integer.MAX_VALUE);
+            }
+        }
+        sort(ret);
+        return ret;
+    }
+
+    /**
+     * @return Bytes of memory reserved.
+     */
+    public int capacity() {
+        return memory.capacity();
+    }
+
+    /**
+     * @return Number of device and event name combinations held.
+     */
+    public int rings() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (rings) {
+            return "EventHistory{" + "capacity=" + memory.capacity() + ", ringBytes=" + ringBytes + ", rings=" + rings.size()
+                    + ", free=" + free.size() + ", stored=" + stored.sum() + ", overwritten=" + overwritten.sum()
+                    + ", ringsRecycled=" + ringsRecycled + ", tooBig=" + tooBig + '}';
+        }
+    }
+
+    /**
+     * Find a ring for a new key, guarded by rings.
+     */
+    private int allocate() {
+        if (!free.isEmpty()) {
+            return free.poll();
+        }
+        Iterator<Ring> it = rings.values().iterator();
+        Ring victim = it.next();
+        it.remove();
+        ringsRecycled++;
+        synchronized (victim) {
+            victim.dead = true;
+            overwritten.add(victim.count);
+            return victim.base;
+        }
+    }
+
+    private List<Ring> select(String deviceId, String eventName) {
+        ArrayList<Ring> ret = new ArrayList<>();
+        synchronized (rings) {
+            for (Ring r : rings.values()) {
+                if ((null == deviceId || deviceId.equals(r.key.deviceId)) && (null == eventName || eventName.equals(r.key.eventName))) {
+                    ret.add(r);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static void sort(List<Event> events) {
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return Long.compare(time(a.publishedAt), time(b.publishedAt));
+            }
+        });
+    }
+
+    private static long time(Date d) {
+        return null == d ? Long.MIN_VALUE : d.getTime();
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Device id and event name.
+     */
+    private static final class Key {
+
+        final String deviceId;
+        final String eventName;
+        private final int hash;
+
+        Key(String deviceId, String eventName) {
+            this.deviceId = deviceId;
+            this.eventName = eventName;
+            this.hash = 31 * Objects.hashCode(deviceId) + Objects.hashCode(eventName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equals(deviceId, other.deviceId) && Objects.equals(eventName, other.eventName);
+        }
+    }
+
+    /**
+     * Events of one key in a circular part of the memory. A stored event is
+     * its length, the publication time, the time to live, the data and the
+     * length again, so the ring can be read from both ends. Null data is
+     * stored as none, with {@link #NO_DATA} set in the time to live. Positions only
+     * grow, the mask maps them into the ring. All guarded by this.
+     */
+    private class Ring {
+
+        final Key key;
+        final int base;
+        /**
+         * Own view of the memory, the position is not shared.
+         */
+        private final ByteBuffer view = memory.duplicate();
+        String deviceName = "?";
+        boolean dead;
+        int count;
+        private long head;
+        private long tail;
+
+        Ring(Key key, int base) {
+            this.key = key;
+            this.base = base;
+        }
+
+        void append(Event e, int dataLength, int length) {
+            while (ringBytes - (tail - head) < length) {
+                head += getInt(head);
+                count--;
+                overwritten.increment();
+            }
+            long p = tail;
+            p = putInt(p, length);
+            p = putLong(p, time(e.publishedAt));
+            String s = e.data;
+            p = putInt(p, (int) e.ttl | (null == s ? NO_DATA : 0));
+            for (int i = 0; null != s && i < s.length(); i++) {
+                int c = s.charAt(i);
+                if (c < 0x80) {
+                    put(p++, c);
+                } else if (c < 0x800) {
+                    put(p++, 0xC0 | (c >> 6));
+                    put(p++, 0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint((char) c, s.charAt(++i));
+                    put(p++, 0xF0 | (cp >> 18));
+                    put(p++, 0x80 | ((cp >> 12) & 0x3F));
+                    put(p++, 0x80 | ((cp >> 6) & 0x3F));
+                    put(p++, 0x80 | (cp & 0x3F));
+                } else {
+                    put(p++, 0xE0 | (c >> 12));
+                    put(p++, 0x80 | ((c >> 6) & 0x3F));
+                    put(p++, 0x80 | (c & 0x3F));
+                }
+            }
+            putInt(p, length);
+            tail += length;
+            count++;
+        }
+
+        /**
+         * Add events in the period to the list, last arrived first, at most
+         * max. The ring is in order of arrival, not of publication, so every
+         * event in it is checked.
+         */
+        void collect(List<Event> out, long from, long to, int max) {
+            if (dead) {
+                return;
+            }
+            long p = tail;
+            for (int n = 0; n < max && p > head;) {
+                int length = getInt(p - 4);
+                p -= length;
+                long published = getLong(p + 4);
+                if (published >= to || published < from) {
+                    continue;
+                }
+                n++;
+                int ttl = getInt(p + 12);
+                byte[] data = new byte[length - OVERHEAD];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = view.get(base + (int) ((p + 16 + i) & mask));
+                }
+                out.add(new Event(deviceName, key.eventName, key.deviceId,
+                        (ttl & NO_DATA) != 0 ? null : new String(data, StandardCharsets.UTF_8),
+                        published == Long.MIN_VALUE ? null : new Date(published), (ttl & ~NO_DATA) / 1000));
+            }
+        }
+
+        private void put(long p, int b) {
+            view.put(base + (int) (p & mask), (byte) b);
+        }
+
+        private long putInt(long p, int v) {
+            for (int i = 24; i >= 0; i -= 8) {
+                put(p++, v >>> i);
+            }
+            return p;
+        }
+
+        private long putLong(long p, long v) {
+            p = putInt(p, (int) (v >>> 32));
+            return putInt(p, (int) v);
+        }
+
+        private int getInt(long p) {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (view.get(base + (int) ((p + i) & mask)) & 0xFF);
+            }
+            return v;
+        }
+
+        private long getLong(long p) {
+            return ((long) getInt(p) << 32) | (getInt(p + 4) & 0xFFFFFFFFL);
+        }
+    }
+}
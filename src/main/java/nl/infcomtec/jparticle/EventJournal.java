@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of received events, see {@link Cloud#setEventJournal}.
+ * <p>
+ * The journal is a directory of segment files of a fixed size, named after
+ * the offset of their first byte. The offset of an event is its place in the
+ * journal as a whole; a {@link JournalReader} started at an offset returned
+ * before continues from there, also after a restart. When an event does not
+ * fit in the current segment the next one is started at the offset where the
+ * current one ends. The first 8 bytes of a segment hold the time of its last
+ * append, written when the segment is finished; the records follow.
+ * <p>
+ * A record is the length of its content, a CRC32 of the content and the
+ * content: publication time, time to live and the device name, event name,
+ * device id and data in UTF-8. The length is written last, so a length of 0
+ * means the end of the written part. When the journal is opened again the
+ * last segment is checked and a record with a wrong CRC is discarded.
+ * <p>
+ * Records are written to the file channel of the segment, so an event is safe
+ * from a crash of the process as soon as it is appended. Against a crash of
+ * the machine the segment is forced to disk after every {@code syncEvery}
+ * events, by a thread of the journal when events are waiting for
+ * {@code syncMillis} milliseconds, and when closed. Segments beyond the
+ * retention, in bytes or in age since their last append, are deleted when a
+ * new one is started.
+ *
+ * @author walter
+ */
+public class EventJournal implements AutoCloseable {
+
+    /**
+     * Size of a segment if not specified.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    /**
+     * Bytes before the content of a record: length and CRC.
+     */
+    static final int HEADER = 8;
+    /**
+     * Bytes before the first record of a segment: the time of its last
+     * append.
+     */
+    static final int SEGMENT_HEADER = 8;
+    private static final String SUFFIX = ".journal";
+    /**
+     * Directory with the segments.
+     */
+    public final File dir;
+    /**
+     * Size of every segment.
+     */
+    public final int segmentSize;
+    /**
+     * Total size of the segments to keep, 0 for no limit.
+     */
+    public final long retentionBytes;
+    /**
+     * Age of the segments to keep, from their last append, 0 for no limit.
+     */
+    public final long retentionMillis;
+    private final int syncEvery;
+    private final long syncMillis;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private final ScheduledExecutorService syncer;
+    private ByteBuffer record = ByteBuffer.allocate(1024);
+    private FileChannel channel;
+    private long base;
+    /**
+     * Time of the last append to the current segment.
+     */
+    private long lastAppend;
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+    /**
+     * Offset after the last appended event, for readers in this process.
+     */
+    private volatile long end;
+    private boolean closed;
+
+    /**
+     * Open or create a journal with the default segment size, forcing to disk
+     * every 1000 events or second and no retention limits.
+     *
+     * @param dir Directory with the segments.
+     * @throws IOException If the directory or last segment cannot be used.
+     */
+    public EventJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, 0, 0, 1000, 1000);
+    }
+
+    /**
+     * Open or create a journal.
+     *
+     * @param dir Directory with the segments.
+     * @param segmentSize Size of a segment in bytes.
+     * @param retentionBytes Total size of the segments to keep, 0 for no
+     * limit.
+     * @param retentionMillis Age of the segments to keep, 0 for no limit.
+     * @param syncEvery Force to disk after this many events, 0 to leave it to
+     * the time.
+     * @param syncMillis Force to disk when events waited this many
+     * milliseconds, 0 to leave it to the count.
+     * @throws IOException If the directory or last segment cannot be used.
+     */
+    public EventJournal(File dir, int segmentSize, long retentionBytes, long retentionMillis, int syncEvery, long syncMillis) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 1024");
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.syncEvery = syncEvery;
+        this.syncMillis = syncMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        TreeMap<Long, File> segments = segments(dir);
+        if (segments.isEmpty()) {
+            open(0);
+            end = SEGMENT_HEADER;
+        } else {
+            Map.Entry<Long, File> last = segments.lastEntry();
+            open(last.getKey());
+            lastAppend = lastAppend(last.getValue());
+            end = base + recover();
+        }
+        if (syncMillis > 0) {
+            syncer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JParticle-journal");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    syncIfDue();
+                }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Append an event.
+     *
+     * @param e The event.
+     * @return The offset of the event.
+     * @throws IOException If the journal is closed or a segment cannot be
+     * created.
+     */
+    public synchronized long append(Event e) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+        byte[][] strings = {bytes(e.deviceName), bytes(e.eventName), bytes(e.coreId), bytes(e.data)};
+        int size = 12;
+        for (byte[] s : strings) {
+            size += 4 + s.length;
+        }
+        if (SEGMENT_HEADER + HEADER + size > segmentSize) {
+            throw new IOException("Event of " + size + " bytes does not fit in a segment");
+        }
+        int pos = (int) (end - base);
+        if (pos + HEADER + size > segmentSize) {
+            roll();
+            pos = SEGMENT_HEADER;
+        }
+        if (record.capacity() < HEADER + size) {
+            record = ByteBuffer.allocate(Math.max(HEADER + size, 2 * record.capacity()));
+        }
+        ByteBuffer buf = record;
+        buf.clear();
+        buf.position(HEADER);
+        buf.putLong(null == e.publishedAt ? Long.MIN_VALUE : e.publishedAt.getTime());
+        buf.putInt((int) e.ttl);
+        for (byte[] s : strings) {
+            buf.putInt(s.length);
+            buf.put(s);
+        }
+        crc.reset();
+        crc.update(buf.array(), HEADER, size);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        buf.position(4);
+        write(buf, pos + 4);
+        // the length goes last, it makes the record visible
+        length.clear();
+        length.putInt(size).flip();
+        write(length, pos);
+        lastAppend = System.currentTimeMillis();
+        long ret = end;
+        end = base + pos + HEADER + size;
+        unsynced++;
+        if (syncEvery > 0 && unsynced >= syncEvery) {
+            sync();
+        }
+        return ret;
+    }
+
+    /**
+     * Force the current segment to disk.
+     */
+    public synchronized void sync() {
+        if (!closed && unsynced > 0) {
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                Logger.getLogger(EventJournal.class.getName()).log(Level.SEVERE, "Cannot force " + segmentFile(dir, base), ex);
+                return;
+            }
+        }
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * From the thread of the journal: force the events that waited
+     * {@code syncMillis}, so the last ones of a burst do not wait for the next
+     * append.
+     */
+    private synchronized void syncIfDue() {
+        if (unsynced > 0 && System.currentTimeMillis() - lastSync >= syncMillis) {
+            sync();
+        }
+    }
+
+    /**
+     * @return Offset of the oldest event still in the journal.
+     */
+    public long firstOffset() {
+        TreeMap<Long, File> segments = segments(dir);
+        return segments.isEmpty() ? end : segments.firstKey() + SEGMENT_HEADER;
+    }
+
+    /**
+     * @return Offset where the next event will be appended.
+     */
+    public long endOffset() {
+        return end;
+    }
+
+    /**
+     * Read the journal from an offset. A reader from this method sees events
+     * as soon as they are appended.
+     *
+     * @param offset Where to start, from {@link #append} or
+     * {@link JournalReader#offset()}; 0 for the oldest event.
+     * @return The reader.
+     */
+    public JournalReader reader(long offset) {
+        return new JournalReader(this, dir, segmentSize, offset);
+    }
+
+    /**
+     * Force everything to disk and close. Appending after this fails.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (null != syncer) {
+            syncer.shutdown();
+        }
+        try {
+            finish();
+            channel.force(false);
+        } catch (IOException ex) {
+            Logger.getLogger(EventJournal.class.getName()).log(Level.SEVERE, "Cannot force " + segmentFile(dir, base), ex);
+        }
+        unsynced = 0;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // nothing left to lose, it was forced
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EventJournal{" + "dir=" + dir + ", segmentSize=" + segmentSize + ", first=" + firstOffset() + ", end=" + end + '}';
+    }
+
+    /**
+     * Start a new segment at the end of the current one, then apply the
+     * retention.
+     */
+    private void roll() throws IOException {
+        finish();
+        channel.force(false);
+        unsynced = 0;
+        channel.close();
+        open(base + segmentSize);
+        end = base + SEGMENT_HEADER;
+        TreeMap<Long, File> segments = segments(dir);
+        long now = System.currentTimeMillis();
+        long total = (long) segments.size() * segmentSize;
+        for (Map.Entry<Long, File> s : segments.entrySet()) {
+            if (s.getKey() == base) {
+                break;
+            }
+            boolean tooMuch = retentionBytes > 0 && total > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && now - lastAppend(s.getValue()) > retentionMillis;
+            if (!tooMuch && !tooOld) {
+                break;
+            }
+            if (s.getValue().delete()) {
+                total -= segmentSize;
+            }
+        }
+    }
+
+    private void open(long base) throws IOException {
+        this.base = base;
+        lastAppend = 0;
+        channel = FileChannel.open(segmentFile(dir, base).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < SEGMENT_HEADER) {
+            write(ByteBuffer.allocate(SEGMENT_HEADER), 0);
+        }
+    }
+
+    /**
+     * Write the time of the last append in the header of the current segment.
+     */
+    private void finish() throws IOException {
+        if (lastAppend > 0) {
+            ByteBuffer buf = ByteBuffer.allocate(SEGMENT_HEADER);
+            buf.putLong(lastAppend).flip();
+            write(buf, 0);
+        }
+    }
+
+    private void write(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Find the end of the written part of the current segment, cutting off a
+     * record that was not completely written.
+     *
+     * @return The position after the last good record.
+     */
+    private int recover() throws IOException {
+        long size = Math.min(channel.size(), segmentSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        int pos = SEGMENT_HEADER;
+        while (pos + HEADER <= size) {
+            header.clear();
+            read(channel, header, pos);
+            int length = header.getInt(0);
+            if (length <= 0 || pos + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer content = ByteBuffer.allocate(length);
+            read(channel, content, pos + HEADER);
+            crc.reset();
+            crc.update(content.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            pos += HEADER + length;
+        }
+        if (channel.size() > pos) {
+            channel.truncate(pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Fill a buffer from a channel.
+     *
+     * @return false if the channel ends first.
+     */
+    static boolean read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    /**
+     * @param segment A segment file.
+     * @return The time of its last append from its header, or when it was
+     * last modified if it was not finished.
+     */
+    private static long lastAppend(File segment) {
+        try (RandomAccessFile f = new RandomAccessFile(segment, "r")) {
+            long ret = f.length() >= SEGMENT_HEADER ? f.readLong() : 0;
+            if (ret > 0) {
+                return ret;
+            }
+        } catch (IOException ex) {
+            // deleted or unreadable, fall back
+        }
+        return segment.lastModified();
+    }
+
+    private static byte[] bytes(String s) {
+        return null == s ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode the content of a record.
+     *
+     * @param buf The segment, positioned at the content.
+     * @return The event.
+     */
+    static Event decode(ByteBuffer buf) {
+        long published = buf.getLong();
+        int ttl = buf.getInt();
+        String deviceName = string(buf);
+        String eventName = string(buf);
+        String coreId = string(buf);
+        String data = string(buf);
+        return new Event(deviceName, eventName, coreId, data, published == Long.MIN_VALUE ? null : new Date(published), ttl / 1000);
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param dir Directory with the segments.
+     * @return The segment files by base offset.
+     */
+    static TreeMap<Long, File> segments(File dir) {
+        TreeMap<Long, File> ret = new TreeMap<>();
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                String n = f.getName();
+                if (n.endsWith(SUFFIX)) {
+                    try {
+                        ret.put(Long.parseLong(n.substring(0, n.length() - SUFFIX.length())), f);
+                    } catch (NumberFormatException ex) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    static File segmentFile(File dir, long base) {
+        return new File(dir, String.format("%020d%s", base, SUFFIX));
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Turns the data of a published event into an {@link Event}.
+ * <p>
+ * Particle sends a flat JSON object with the fields coreid, data,
+ * published_at and ttl. Rather than building a JSONObject this picks those
+ * four fields straight from the bytes; anything else is skipped. Not thread
+ * safe, use one per stream.
+ *
+ * @author walter
+ */
+class EventParser implements SseDecoder.Handler {
+
+    private static final byte[] CORE_ID = "coreid".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA = "data".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PUBLISHED_AT = "published_at".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TTL = "ttl".getBytes(StandardCharsets.US_ASCII);
+    private final Cloud cloud;
+    private final StringCache ids = new StringCache();
+    private final Iso8601.Ascii ascii = new Iso8601.Ascii();
+    private char[] chars = new char[256];
+    private byte[] b;
+    private int pos;
+    private int end;
+    private String coreId;
+    private String data;
+    private long publishedAt;
+    private long ttl;
+    /**
+     * Set when a string had a bad escape, the event is dropped.
+     */
+    private boolean invalid;
+
+    /**
+     * Constructor.
+     *
+     * @param cloud Gets the events.
+     */
+    EventParser(Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    @Override
+    public void event(String eventName, byte[] json, int length) throws IOException {
+        Event e = parse(eventName, json, length);
+        if (null != e) {
+            cloud.received(e);
+        }
+    }
+
+    /**
+     * Parse the data of an event.
+     *
+     * @param eventName Name of the event.
+     * @param json The data.
+     * @param length Number of bytes of data.
+     * @return The event or null if this was not a valid event.
+     */
+    Event parse(String eventName, byte[] json, int length) {
+        b = json;
+        pos = 0;
+        end = length;
+        coreId = null;
+        data = null;
+        publishedAt = Iso8601.INVALID;
+        ttl = 60;
+        invalid = false;
+        try {
+            if (!object()) {
+                return null;
+            }
+        } finally {
+            b = null;
+        }
+        if (invalid || null == coreId || publishedAt == Iso8601.INVALID) {
+            return null;
+        }
+        return new Event(cloud.deviceName(coreId), eventName, coreId, data, new Date(publishedAt), ttl);
+    }
+
+    private boolean object() {
+        if (!skipTo('{')) {
+            return false;
+        }
+        pos++;
+        while (true) {
+            skipSpace();
+            if (pos >= end) {
+                return false;
+            }
+            if (b[pos] == '}') {
+                return true;
+            }
+            if (b[pos] == ',') {
+                pos++;
+                continue;
+            }
+            if (b[pos] != '"') {
+                return false;
+            }
+            int keyStart = pos + 1;
+            if (!skipString()) {
+                return false;
+            }
+            int keyLength = pos - 1 - keyStart;
+            skipSpace();
+            if (pos >= end || b[pos] != ':') {
+                return false;
+            }
+            pos++;
+            skipSpace();
+            if (pos >= end) {
+                return false;
+            }
+            if (is(CORE_ID, keyStart, keyLength)) {
+                coreId = b[pos] == '"' ? string(true) : null;
+            } else if (is(DATA, keyStart, keyLength)) {
+                data = b[pos] == '"' ? string(false) : null;
+            } else if (is(PUBLISHED_AT, keyStart, keyLength)) {
+                publishedAt = b[pos] == '"' ? date() : Iso8601.INVALID;
+            } else if (is(TTL, keyStart, keyLength)) {
+                ttl = number();
+            }
+            if (!skipValue()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Decode the string at pos, leaves pos alone.
+     *
+     * @return The string, or null with {@link #invalid} set when it has a bad
+     * escape.
+     */
+    private String string(boolean cached) {
+        int start = pos + 1;
+        int i = start;
+        while (i < end && b[i] != '"' && b[i] != '\\') {
+            i++;
+        }
+        if (i < end && b[i] == '"') {
+            // the common case, no escapes
+            return cached ? ids.get(b, start, i - start) : StringCache.decode(b, start, i - start);
+        }
+        int n = 0;
+        i = start;
+        while (i < end && b[i] != '"') {
+            if (n + 2 > chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+            int c = b[i] & 0xFF;
+            if (c == '\\' && i + 1 < end) {
+                i++;
+                switch (b[i]) {
+                    case 'b':
+                        chars[n++] = '\b';
+                        break;
+                    case 'f':
+                        chars[n++] = '\f';
+                        break;
+                    case 'n':
+                        chars[n++] = '\n';
+                        break;
+                    case 'r':
+                        chars[n++] = '\r';
+                        break;
+                    case 't':
+                        chars[n++] = '\t';
+                        break;
+                    case 'u':
+                        int u = 0;
+                        for (int k = 1; k <= 4; k++) {
+                            int h = i + k < end ? Character.digit(b[i + k], 16) : -1;
+                            if (h < 0) {
+                                invalid = true;
+                                return null;
+                            }
+                            u = (u << 4) | h;
+                        }
+                        chars[n++] = (char) u;
+                        i += 4;
+                        break;
+                    default:
+                        chars[n++] = (char) b[i];
+                }
+                i++;
+            } else if (c < 0x80) {
+                chars[n++] = (char) c;
+                i++;
+            } else {
+                // a multi-byte UTF-8 sequence, up to the next escape or quote
+                int s = i;
+                while (i < end && b[i] < 0) {
+                    i++;
+                }
+                String part = new String(b, s, i - s, StandardCharsets.UTF_8);
+                if (n + part.length() > chars.length) {
+                    chars = Arrays.copyOf(chars, Math.max(chars.length * 2, n + part.length()));
+                }
+                part.getChars(0, part.length(), chars, n);
+                n += part.length();
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Parse the date string at pos, leaves pos alone.
+     */
+    private long date() {
+        int start = pos + 1;
+        int i = start;
+        while (i < end && b[i] != '"' && b[i] != '\\') {
+            i++;
+        }
+        if (i < end && b[i] == '"') {
+            return Iso8601.parse(ascii.set(b, start, i - start));
+        }
+        String s = string(false);
+        return null == s ? Iso8601.INVALID : Iso8601.parse(s);
+    }
+
+    private long number() {
+        boolean quoted = b[pos] == '"';
+        int i = quoted ? pos + 1 : pos;
+        long ret = 0;
+        while (i < end && b[i] >= '0' && b[i] <= '9') {
+            ret = ret * 10 + b[i++] - '0';
+        }
+        return ret;
+    }
+
+    private boolean skipValue() {
+        if (b[pos] == '"') {
+            return skipString();
+        }
+        if (b[pos] == '{' || b[pos] == '[') {
+            int depth = 0;
+            while (pos < end) {
+                byte c = b[pos];
+                if (c == '"') {
+                    if (!skipString()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+                if (depth == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        while (pos < end && b[pos] != ',' && b[pos] != '}') {
+            pos++;
+        }
+        return pos < end;
+    }
+
+    /**
+     * Skip the string at pos, leaves pos after the closing quote.
+     */
+    private boolean skipString() {
+        pos++;
+        while (pos < end) {
+            if (b[pos] == '\\') {
+                pos += 2;
+            } else if (b[pos] == '"') {
+                pos++;
+                return true;
+            } else {
+                pos++;
+            }
+        }
+        return false;
+    }
+
+    private boolean skipTo(char c) {
+        while (pos < end && b[pos] != c) {
+            pos++;
+        }
+        return pos < end;
+    }
+
+    private void skipSpace() {
+        while (pos < end && (b[pos] == ' ' || b[pos] == '\t' || b[pos] == '\n' || b[pos] == '\r')) {
+            pos++;
+        }
+    }
+
+    private boolean is(byte[] key, int start, int length) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (b[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.UUID;
+
+/**
+ * Events of a {@link Cloud} for subscribers that say how many they can take,
+ * see {@link Cloud#publisher}. On Java 9 and later this is also a
+ * java.util.concurrent.Flow.Publisher.
+ * <p>
+ * Every subscriber gets its own queue of the given capacity. Events are only
+ * handed over when asked for; in the mean time they are queued, and when the
+ * queue is full the overflow policy applies. By default the oldest are
+ * dropped, so a subscriber that stops asking only loses its own events. With
+ * {@link OverflowPolicy#BLOCK}, to be chosen explicitly, the backpressure
+ * reaches the event stream itself: nothing is lost, but the stream and all
+ * other subscribers of the Cloud wait as long as one subscriber does not ask
+ * for more.
+ *
+ * @author walter
+ */
+public class EventPublisher {
+
+    /**
+     * Only events of this device id, or null.
+     */
+    public final String deviceId;
+    /**
+     * Only events of this device name, or null.
+     */
+    public final String deviceName;
+    /**
+     * Only events with a name that starts with this, or null.
+     */
+    public final String eventPrefix;
+    /**
+     * Maximum number of events queued per subscriber.
+     */
+    public final int capacity;
+    /**
+     * What to do when the queue of a subscriber is full.
+     */
+    public final OverflowPolicy policy;
+    private final Cloud cloud;
+
+    EventPublisher(Cloud cloud, String deviceId, String deviceName, String eventPrefix, int capacity, OverflowPolicy policy) {
+        this.cloud = cloud;
+        this.deviceId = deviceId;
+        this.deviceName = deviceName;
+        this.eventPrefix = eventPrefix;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Add a subscriber. It gets no events until it asks for them.
+     *
+     * @param subscriber The subscriber.
+     * @return The subscription, also passed to the subscriber.
+     */
+    public Subscription subscribe(EventSubscriber subscriber) {
+        Adapter a = new Adapter(subscriber);
+        Subscription s = new Subscription(a, capacity, policy, DispatchMode.SERIAL, cloud.metrics.dispatchLag, eventPrefix, 0);
+        a.subscription = s;
+        subscriber.onSubscribe(s);
+        // only now, so no event is handed over before onSubscribe returned
+        cloud.register(s);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return "EventPublisher{" + "deviceId=" + deviceId + ", deviceName=" + deviceName + ", eventPrefix=" + eventPrefix
+                + ", capacity=" + capacity + ", policy=" + policy + '}';
+    }
+
+    /**
+     * The subscriber as seen by the subscription.
+     */
+    private class Adapter implements DeviceEvent {
+
+        private final UUID uuid = UUID.randomUUID();
+        private final EventSubscriber subscriber;
+        private Subscription subscription;
+
+        Adapter(EventSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void event(Event e) {
+            try {
+                subscriber.onNext(e);
+            } catch (RuntimeException ex) {
+                subscription.cancel();
+                throw ex;
+            }
+        }
+
+        @Override
+        public UUID uuid() {
+            return uuid;
+        }
+
+        @Override
+        public String forDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public String forDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public String forEventName() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds recorded events to the subscribers of a {@link Cloud}, to measure
+ * them and the routing without the Particle Cloud.
+ * <p>
+ * A capture of the event stream, for instance saved with curl, goes through
+ * the same decoding, parsing and dispatch as the live stream. Events from an
+ * {@link EventJournal} are dispatched as read. The events are paced by their
+ * publication time, divided by the speed; {@link #FULL_SPEED} dispatches them
+ * as fast as the subscribers allow.
+ * <p>
+ * Use a Cloud that does not read the live stream, and without a journal or
+ * history unless the replay should go there too:
+ * <pre>
+ * Cloud c = new Cloud("anytoken", sim.baseUrl(), false, false);
+ * c.subscribe(mySubscriber);
+ * System.out.println(new EventReplay(c, EventReplay.FULL_SPEED).replay(new FileInputStream("capture.txt")));
+ * </pre>
+ *
+ * @author walter
+ */
+public class EventReplay {
+
+    /**
+     * At the pace the events were published.
+     */
+    public static final double REAL_TIME = 1;
+    /**
+     * Without waiting.
+     */
+    public static final double FULL_SPEED = 0;
+    /**
+     * Longest wait for the subscribers after the last event, in milliseconds.
+     */
+    private static final long DRAIN_TIMEOUT = 60000;
+    private final Cloud cloud;
+    private final double speed;
+    // state of the current replay
+    private long firstPublished;
+    private long start;
+    private long events;
+    private long skipped;
+    private long maxBehind;
+
+    /**
+     * Constructor.
+     *
+     * @param cloud Dispatches the events.
+     * @param speed How many times faster than real time, or
+     * {@link #FULL_SPEED}.
+     */
+    public EventReplay(Cloud cloud, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+        this.cloud = cloud;
+        this.speed = speed;
+    }
+
+    /**
+     * Replay a capture of the event stream.
+     *
+     * @param capture The capture, will be closed.
+     * @return What was achieved.
+     * @throws IOException When reading the capture fails.
+     */
+    public synchronized ReplayStats replay(InputStream capture) throws IOException {
+        long[] lag = begin();
+        final EventParser parser = new EventParser(cloud);
+        new SseDecoder(new SseDecoder.Handler() {
+            @Override
+            public void event(String eventName, byte[] data, int length) throws IOException {
+                Event e = parser.parse(eventName, data, length);
+                if (null == e) {
+                    skipped++;
+                } else {
+                    emit(e);
+                }
+            }
+        }).read(capture);
+        return end(lag);
+    }
+
+    /**
+     * Replay a journal, from the reader's offset up to the end.
+     *
+     * @param reader Reader of the journal.
+     * @return What was achieved.
+     * @throws IOException When reading the journal fails.
+     */
+    public synchronized ReplayStats replay(JournalReader reader) throws IOException {
+        long[] lag = begin();
+        for (Event e = reader.next(); null != e; e = reader.next()) {
+            emit(e);
+        }
+        return end(lag);
+    }
+
+    private long[] begin() {
+        firstPublished = Long.MIN_VALUE;
+        events = 0;
+        skipped = 0;
+        maxBehind = 0;
+        start = System.nanoTime();
+        return cloud.metrics.dispatchLag.raw();
+    }
+
+    private ReplayStats end(long[] lag) {
+        cloud.awaitIdle(DRAIN_TIMEOUT);
+        return new ReplayStats(events, skipped, System.nanoTime() - start, maxBehind, cloud.metrics.dispatchLag.since(lag));
+    }
+
+    /**
+     * Wait for the time of the event, then dispatch it.
+     */
+    private void emit(Event e) {
+        if (speed > 0 && null != e.publishedAt) {
+            long published = e.publishedAt.getTime();
+            if (firstPublished == Long.MIN_VALUE) {
+                firstPublished = published;
+                start = System.nanoTime();
+            }
+            long due = start + (long) ((published - firstPublished) * 1000000 / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Sleep.sleep(wait / 1000000);
+                // the lag is measured from when the event was made
+                e = new Event(e.deviceName, e.eventName, e.coreId, e.data, e.publishedAt, e.ttl / 1000);
+            } else {
+                maxBehind = Math.max(maxBehind, -wait / 1000000);
+            }
+        }
+        events++;
+        cloud.dispatch(e);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Receives events from an {@link EventPublisher}, only as many as it asked
+ * for. Calls are made one at a time, in the order the events arrived.
+ *
+ * @author walter
+ */
+public interface EventSubscriber {
+
+    /**
+     * Called once, before any event. Call {@link Subscription#request} to get
+     * events, here or later.
+     *
+     * @param subscription To ask for events or cancel.
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Called for each event that was asked for. If this throws the
+     * subscription is cancelled.
+     *
+     * @param e The event.
+     */
+    public void onNext(Event e);
+}
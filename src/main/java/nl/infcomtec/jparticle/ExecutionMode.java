@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Where a {@link Cloud} runs its blocking work: function calls, variable
+ * reads, publishes, pollers and the call-backs of subscribers.
+ *
+ * @author walter
+ */
+public enum ExecutionMode {
+    /**
+     * On platform threads of the Cloud's own bulkheads: a fixed number of
+     * threads for calls and for pollers, a work-stealing pool for the
+     * call-backs of subscribers.
+     */
+    PLATFORM,
+    /**
+     * Every task on a virtual thread of its own, with a cap on how many run
+     * at the same time. Needs Java 21; on older versions the Cloud falls back
+     * to {@link #PLATFORM}.
+     */
+    VIRTUAL
+}
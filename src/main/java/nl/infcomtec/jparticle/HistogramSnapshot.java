@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Snapshot of a {@link LatencyHistogram}, all times in nanoseconds.
+ *
+ * @author walter
+ */
+public class HistogramSnapshot {
+
+    /**
+     * What is measured.
+     */
+    public final String name;
+    /**
+     * Number of values recorded.
+     */
+    public final long count;
+    /**
+     * Average.
+     */
+    public final long mean;
+    /**
+     * Highest value.
+     */
+    public final long max;
+    /**
+     * Median.
+     */
+    public final long p50;
+    /**
+     * 90th percentile.
+     */
+    public final long p90;
+    /**
+     * 99th percentile.
+     */
+    public final long p99;
+    /**
+     * 99.9th percentile.
+     */
+    public final long p999;
+
+    public HistogramSnapshot(String name, long count, long mean, long max, long p50, long p90, long p99, long p999) {
+        this.name = name;
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{count=" + count + ", mean=" + StopWatch.elaspedFromNanos(mean) + ", p50=" + StopWatch.elaspedFromNanos(p50)
+                + ", p90=" + StopWatch.elaspedFromNanos(p90) + ", p99=" + StopWatch.elaspedFromNanos(p99)
+                + ", p999=" + StopWatch.elaspedFromNanos(p999) + ", max=" + StopWatch.elaspedFromNanos(max) + '}';
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport using persistent (keep-alive) connections.
+ * <p>
+ * The JVM keeps a connection alive for re-use if, and only if, the response
+ * was read completely and closed, which is what this class always does. The
+ * number of concurrent requests is limited to the pool size, so no more than
+ * that many connections to the API host will ever be opened.
+ * <p>
+ * Note that the JVM only keeps {@code http.maxConnections} idle connections
+ * per host (default 5); this class raises that to
+ * {@link #DEFAULT_MAX_CONNECTIONS} unless it was already set. This only works
+ * if it is done before the first HTTP connection in the JVM is made.
+ * <p>
+ * Asynchronous requests use the HTTP client of Java 11 and later, with at
+ * most the same number of requests in progress at once; the rest wait
+ * without a thread. On older versions of Java they are blocking requests, on
+ * the calls bulkhead of the {@link Cloud} that makes them, or else on the
+ * calling thread.
+ *
+ * @author walter
+ */
+public class HttpTransport implements AsyncTransport {
+
+    /**
+     * The Particle cloud.
+     */
+    public static final String PARTICLE_API = "https://api.particle.io";
+    /**
+     * Default pool size.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    /**
+     * Default time in milliseconds to wait for a connection to be made.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /**
+     * Default time in milliseconds to wait for a response.
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    private static HttpTransport defaultTransport;
+
+    static {
+        if (null == System.getProperty("http.maxConnections")) {
+            System.setProperty("http.maxConnections", Integer.toString(DEFAULT_MAX_CONNECTIONS));
+        }
+    }
+
+    /**
+     * The transport used when none is specified.
+     *
+     * @return A shared transport to the Particle cloud.
+     */
+    public static synchronized HttpTransport getDefault() {
+        if (null == defaultTransport) {
+            defaultTransport = new HttpTransport(PARTICLE_API, DEFAULT_MAX_CONNECTIONS);
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Where the API lives, without a trailing slash.
+     */
+    public final String baseUrl;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final CountingSocketFactory sockets;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    /**
+     * For asynchronous requests, created when first needed.
+     */
+    private AsyncTransport client;
+    private boolean clientLoaded;
+
+    /**
+     * Constructor.
+     *
+     * @param baseUrl Where the API lives, like {@link #PARTICLE_API}.
+     * @param maxConnections Maximum number of concurrent requests.
+     */
+    public HttpTransport(String baseUrl, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+        this.sockets = new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /**
+     * Set the timeouts applied to each request.
+     *
+     * @param connectTimeout Milliseconds to wait for a connection.
+     * @param readTimeout Milliseconds to wait for a response.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        synchronized (this) {
+            // the next asynchronous request gets a client with these
+            client = null;
+            clientLoaded = false;
+        }
+    }
+
+    @Override
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException {
+        acquire();
+        try {
+            requests.incrementAndGet();
+            HttpURLConnection conn = open(path, accessToken);
+            conn.setRequestMethod(method);
+            conn.setReadTimeout(readTimeout);
+            if (null != form) {
+                byte[] bytes = form.getBytes(StandardCharsets.UTF_8);
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                conn.setFixedLengthStreamingMode(bytes.length);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(bytes);
+                }
+            }
+            int code = conn.getResponseCode();
+            // read and close whatever came back, else the connection is not re-used
+            InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            return new Response(code, drain(is), conn.getHeaderFields());
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            throw ex;
+        } finally {
+            inUse.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form) {
+        AsyncTransport c = client();
+        if (null != c) {
+            return c.exchangeAsync(method, path, accessToken, form);
+        }
+        return Async.now(this, method, path, accessToken, form);
+    }
+
+    @Override
+    public InputStream stream(String path, String accessToken) throws IOException {
+        final HttpURLConnection conn = open(path, accessToken);
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty("Accept", "text/event-stream");
+        // events can be far apart, so no read timeout here
+        conn.setReadTimeout(0);
+        InputStream is = conn.getInputStream();
+        openStreams.incrementAndGet();
+        return new FilterInputStream(is) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                }
+                openStreams.decrementAndGet();
+                // drop the socket first, a read in another thread holds the stream
+                conn.disconnect();
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * The statistics of the asynchronous requests are added to those of the
+     * blocking ones.
+     *
+     * @return A snapshot of the current statistics.
+     */
+    @Override
+    public TransportStats stats() {
+        AsyncTransport c;
+        synchronized (this) {
+            c = client;
+        }
+        TransportStats s = null == c ? null : c.stats();
+        if (null == s) {
+            return new TransportStats(maxConnections, inUse.get(), peakInUse.get(), requests.get(),
+                    failures.get(), waits.get(), sockets.created.get(), openStreams.get());
+        }
+        return new TransportStats(maxConnections, inUse.get() + s.inUse, Math.max(peakInUse.get(), s.peakInUse), requests.get() + s.requests,
+                failures.get() + s.failures, waits.get() + s.waits, sockets.created.get() + s.connectionsOpened, openStreams.get() + s.openStreams);
+    }
+
+    synchronized AsyncTransport client() {
+        if (!clientLoaded) {
+            client = Async.httpClient(baseUrl, maxConnections, connectTimeout, readTimeout);
+            clientLoaded = true;
+        }
+        return client;
+    }
+
+    private void acquire() throws IOException {
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            try {
+                if (!permits.tryAcquire(connectTimeout + readTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("No connection available within " + (connectTimeout + readTimeout) + " ms");
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted waiting for a connection");
+            }
+        }
+        int n = inUse.incrementAndGet();
+        int peak;
+        while (n > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, n)) {
+            // retry
+        }
+    }
+
+    private HttpURLConnection open(String path, String accessToken) throws IOException {
+        URL url = new URL(baseUrl + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // always the same factory, the JVM only re-uses connections for the same one
+            ((HttpsURLConnection) conn).setSSLSocketFactory(sockets);
+        }
+        conn.setConnectTimeout(connectTimeout);
+        conn.setUseCaches(false);
+        conn.setRequestProperty("Connection", "keep-alive");
+        if (null != accessToken) {
+            conn.setRequestProperty("Authorization", accessToken);
+        }
+        return conn;
+    }
+
+    private static byte[] drain(InputStream is) throws IOException {
+        if (null == is) {
+            return null;
+        }
+        try (InputStream in = is) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    /**
+     * Counts the number of sockets actually created.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+        private final AtomicLong created = new AtomicLong();
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            // may throw if unconnected sockets are not supported, do not count that
+            Socket s = delegate.createSocket();
+            created.incrementAndGet();
+            return s;
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            created.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * The outcome of a refresh of the devices.
+ * <p>
+ * A device counts as changed when its name, connection, status, firmware,
+ * address, application, variables or functions differ; only a new last heard
+ * time does not count, but the new value is in the devices all the same.
+ *
+ * @author walter
+ */
+public class InventoryChange {
+
+    /**
+     * New devices.
+     */
+    public final List<Device> added;
+    /**
+     * Devices that are gone, as they were.
+     */
+    public final List<Device> removed;
+    /**
+     * Devices that changed, as they are now.
+     */
+    public final List<Device> changed;
+    /**
+     * All devices after the refresh, by name.
+     */
+    public final SortedMap<String, Device> devices;
+
+    public InventoryChange(List<Device> added, List<Device> removed, List<Device> changed, SortedMap<String, Device> devices) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+        this.devices = devices;
+    }
+
+    /**
+     * @return true if nothing was added, removed or changed.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "InventoryChange{" + "added=" + added.size() + ", removed=" + removed.size() + ", changed=" + changed.size() + ", devices=" + devices.size() + '}';
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Use this interface to get told about devices that were added, removed or
+ * changed by {@link Cloud#refresh()}.
+ *
+ * @author walter
+ */
+public interface InventoryListener {
+
+    /**
+     * Called after a refresh that changed something, on the thread that did
+     * the refresh. The new devices are already visible.
+     *
+     * @param change What changed.
+     */
+    public void inventoryChanged(InventoryChange change);
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Parses the ISO-8601 date-times Particle sends, like
+ * "2017-03-18T19:09:49.917Z" or "2017-03-18T20:09:49+01:00".
+ * <p>
+ * Thread safe without locks and does not allocate. Accepts a 'T' or a space
+ * between date and time, any number of fraction digits and a zone of 'Z',
+ * +HH:MM or +HHMM.
+ *
+ * @author walter
+ */
+final class Iso8601 {
+
+    /**
+     * Returned for anything that can not be parsed.
+     */
+    static final long INVALID = Long.MIN_VALUE;
+
+    private Iso8601() {
+    }
+
+    /**
+     * Parse a date-time.
+     *
+     * @param s The text, may be null.
+     * @return Milliseconds since the epoch or {@link #INVALID}.
+     */
+    static long parse(CharSequence s) {
+        if (null == s || s.length() < 20) {
+            return INVALID;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60
+                || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(13) != ':' || s.charAt(16) != ':'
+                || (s.charAt(10) != 'T' && s.charAt(10) != ' ')) {
+            return INVALID;
+        }
+        int i = 19;
+        int len = s.length();
+        int millis = 0;
+        if (s.charAt(i) == '.') {
+            i++;
+            int scale = 100;
+            int start = i;
+            while (i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                millis += (s.charAt(i) - '0') * scale;
+                scale /= 10;
+                i++;
+            }
+            if (i == start) {
+                return INVALID;
+            }
+        }
+        if (i >= len) {
+            return INVALID;
+        }
+        int offset;
+        char z = s.charAt(i);
+        if (z == 'Z' && i + 1 == len) {
+            offset = 0;
+        } else if (z == '+' || z == '-') {
+            int oh = digits(s, i + 1, 2);
+            int om;
+            if (i + 6 == len && s.charAt(i + 3) == ':') {
+                om = digits(s, i + 4, 2);
+            } else if (i + 5 == len) {
+                om = digits(s, i + 3, 2);
+            } else {
+                return INVALID;
+            }
+            if (oh < 0 || om < 0) {
+                return INVALID;
+            }
+            offset = (oh * 60 + om) * (z == '-' ? -1 : 1);
+        } else {
+            return INVALID;
+        }
+        long days = epochDay(year, month, day);
+        return ((days * 24 + hour) * 60 + minute - offset) * 60000L + second * 1000L + millis;
+    }
+
+    private static int digits(CharSequence s, int at, int n) {
+        if (at + n > s.length()) {
+            return -1;
+        }
+        int ret = 0;
+        for (int i = at; i < at + n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            ret = ret * 10 + c - '0';
+        }
+        return ret;
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Shows ASCII bytes as a CharSequence, so they can be parsed without
+     * making a String. Re-use one per thread.
+     */
+    static final class Ascii implements CharSequence {
+
+        private byte[] b;
+        private int off;
+        private int len;
+
+        /**
+         * Point at some bytes.
+         *
+         * @param b The bytes.
+         * @param off Where they start.
+         * @param len How many.
+         * @return this.
+         */
+        Ascii set(byte[] b, int off, int len) {
+            this.b = b;
+            this.off = off;
+            this.len = len;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (b[off + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return StringCache.decode(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an {@link EventJournal} in order, from an offset. Keep
+ * {@link #offset()} to continue at the same place later, for instance after a
+ * restart. When the events at the offset were deleted by the retention the
+ * reader continues with the oldest event that is left.
+ * <p>
+ * A reader keeps the segment it reads open until it has no more events for
+ * now or is closed. A reader is meant for one thread.
+ *
+ * @author walter
+ */
+public class JournalReader implements AutoCloseable {
+
+    private final EventJournal journal;
+    private final File dir;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(EventJournal.HEADER);
+    private ByteBuffer content = ByteBuffer.allocate(1024);
+    private FileChannel segment;
+    private long base = -1;
+    private long offset;
+
+    /**
+     * Read a journal that is not open in this process, for instance the one
+     * of another process or one of an earlier run.
+     *
+     * @param dir Directory with the segments.
+     * @param segmentSize Size of the segments.
+     * @param offset Where to start, 0 for the oldest event.
+     */
+    public JournalReader(File dir, int segmentSize, long offset) {
+        this(null, dir, segmentSize, offset);
+    }
+
+    JournalReader(EventJournal journal, File dir, int segmentSize, long offset) {
+        this.journal = journal;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.offset = offset;
+    }
+
+    /**
+     * Get the next event, if there is one.
+     *
+     * @return The event, or null if there are no more events for now.
+     * @throws IOException If a segment cannot be read or a record is corrupt.
+     */
+    public Event next() throws IOException {
+        while (null == journal || offset < journal.endOffset()) {
+            if (!locate()) {
+                break;
+            }
+            int pos = (int) (offset - base);
+            header.clear();
+            int length = pos + EventJournal.HEADER <= segmentSize
+                    && EventJournal.read(segment, header, pos) ? header.getInt(0) : 0;
+            if (length <= 0) {
+                // end of the written part, perhaps there is a next segment
+                Long next = EventJournal.segments(dir).higherKey(base);
+                if (null == next) {
+                    break;
+                }
+                offset = next + EventJournal.SEGMENT_HEADER;
+                continue;
+            }
+            if (pos + EventJournal.HEADER + length > segmentSize) {
+                throw new IOException("Corrupt record at offset " + offset);
+            }
+            if (content.capacity() < length) {
+                content = ByteBuffer.allocate(Math.max(length, 2 * content.capacity()));
+            }
+            ByteBuffer buf = content;
+            buf.clear();
+            buf.limit(length);
+            if (!EventJournal.read(segment, buf, pos + EventJournal.HEADER)) {
+                throw new IOException("Truncated record at offset " + offset);
+            }
+            crc.reset();
+            crc.update(buf.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                throw new IOException("Corrupt record at offset " + offset);
+            }
+            buf.flip();
+            Event ret = EventJournal.decode(buf);
+            offset += EventJournal.HEADER + length;
+            return ret;
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * @return Offset of the next event to read.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Close the segment being read. The reader can still be used, it opens
+     * the segment again.
+     */
+    @Override
+    public void close() {
+        if (null != segment) {
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                // only read
+            }
+            segment = null;
+        }
+    }
+
+    /**
+     * Make sure the segment holding the offset is open.
+     *
+     * @return false if there is no such segment (yet).
+     */
+    private boolean locate() throws IOException {
+        if (null != segment && offset >= base && offset < base + segmentSize) {
+            offset = Math.max(offset, base + EventJournal.SEGMENT_HEADER);
+            return true;
+        }
+        TreeMap<Long, File> segments = EventJournal.segments(dir);
+        if (segments.isEmpty()) {
+            return false;
+        }
+        Map.Entry<Long, File> e = segments.floorEntry(offset);
+        if (null == e) {
+            // deleted by the retention
+            e = segments.firstEntry();
+            offset = e.getKey() + EventJournal.SEGMENT_HEADER;
+        } else if (offset >= e.getKey() + segmentSize) {
+            Long next = segments.higherKey(e.getKey());
+            if (null == next) {
+                return false;
+            }
+            e = segments.floorEntry(next);
+            offset = next + EventJournal.SEGMENT_HEADER;
+        }
+        close();
+        segment = FileChannel.open(e.getValue().toPath(), StandardOpenOption.READ);
+        base = e.getKey();
+        offset = Math.max(offset, base + EventJournal.SEGMENT_HEADER);
+        return true;
+    }
+}
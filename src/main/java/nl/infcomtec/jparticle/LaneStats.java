@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Snapshot of the statistics of one lane of a {@link RateLimiter}.
+ *
+ * @author walter
+ */
+public class LaneStats {
+
+    /**
+     * The lane.
+     */
+    public final Priority priority;
+    /**
+     * Requests let through.
+     */
+    public final long acquired;
+    /**
+     * Requests that had to wait for a token.
+     */
+    public final long waited;
+    /**
+     * Total time spent waiting in nanoseconds.
+     */
+    public final long totalWait;
+    /**
+     * Longest wait in nanoseconds.
+     */
+    public final long maxWait;
+    /**
+     * Requests waiting right now.
+     */
+    public final int queued;
+
+    public LaneStats(Priority priority, long acquired, long waited, long totalWait, long maxWait, int queued) {
+        this.priority = priority;
+        this.acquired = acquired;
+        this.waited = waited;
+        this.totalWait = totalWait;
+        this.maxWait = maxWait;
+        this.queued = queued;
+    }
+
+    /**
+     * @return Average wait over all requests in nanoseconds.
+     */
+    public long meanWait() {
+        return acquired == 0 ? 0 : totalWait / acquired;
+    }
+
+    @Override
+    public String toString() {
+        return "LaneStats{" + "priority=" + priority + ", acquired=" + acquired + ", waited=" + waited + ", meanWait=" + StopWatch.elaspedFromNanos(meanWait()) + ", maxWait=" + StopWatch.elaspedFromNanos(maxWait) + ", queued=" + queued + '}';
+    }
+}
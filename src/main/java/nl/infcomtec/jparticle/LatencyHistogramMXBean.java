@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * JMX view of a {@link LatencyHistogram}, registered by
+ * {@link Metrics#registerMBeans}.
+ *
+ * @author walter
+ */
+public interface LatencyHistogramMXBean {
+
+    /**
+     * @return Number of values recorded.
+     */
+    public long getCount();
+
+    /**
+     * @return Average in milliseconds.
+     */
+    public double getMeanMillis();
+
+    /**
+     * @return Highest value in milliseconds.
+     */
+    public double getMaxMillis();
+
+    /**
+     * @return Median in milliseconds.
+     */
+    public double getP50Millis();
+
+    /**
+     * @return 90th percentile in milliseconds.
+     */
+    public double getP90Millis();
+
+    /**
+     * @return 99th percentile in milliseconds.
+     */
+    public double getP99Millis();
+
+    /**
+     * @return 99.9th percentile in milliseconds.
+     */
+    public double getP999Millis();
+}
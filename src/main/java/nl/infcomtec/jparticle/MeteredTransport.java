@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Transport that times every request into {@link Metrics}, per
+ * {@link Endpoint}. The time includes whatever the transport it wraps does,
+ * like waiting for the rate limiter and retries.
+ *
+ * @author walter
+ */
+public class MeteredTransport implements AsyncTransport {
+
+    /**
+     * Where the requests go.
+     */
+    public final Transport delegate;
+    /**
+     * Where the measurements go.
+     */
+    public final Metrics metrics;
+    /**
+     * Runs the asynchronous requests when the delegate can only block, may
+     * be null.
+     */
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate Where the requests go.
+     * @param metrics Where the measurements go.
+     */
+    public MeteredTransport(Transport delegate, Metrics metrics) {
+        this(delegate, metrics, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate Where the requests go.
+     * @param metrics Where the measurements go.
+     * @param executor Runs the asynchronous requests when the delegate can
+     * only block, null to run them on the calling thread.
+     */
+    public MeteredTransport(Transport delegate, Metrics metrics, Executor executor) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.executor = executor;
+    }
+
+    @Override
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException {
+        Endpoint endpoint = Endpoint.classify(method, path);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Response resp = delegate.exchange(method, path, accessToken, form);
+            ok = resp.isOk();
+            return resp;
+        } finally {
+            metrics.request(endpoint, System.nanoTime() - start, ok);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form) {
+        final Endpoint endpoint = Endpoint.classify(method, path);
+        final long start = System.nanoTime();
+        CompletableFuture<Response> f = null != executor && Async.blocks(delegate)
+                ? Async.blocking(delegate, executor, method, path, accessToken, form)
+                : Async.exchange(delegate, method, path, accessToken, form);
+        return f.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response resp, Throwable ex) {
+                metrics.request(endpoint, System.nanoTime() - start, null != resp && resp.isOk());
+            }
+        });
+    }
+
+    @Override
+    public InputStream stream(String path, String accessToken) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            InputStream ret = delegate.stream(path, accessToken);
+            ok = true;
+            return ret;
+        } finally {
+            metrics.request(Endpoint.EVENT_STREAM, System.nanoTime() - start, ok);
+        }
+    }
+
+    @Override
+    public TransportStats stats() {
+        return delegate.stats();
+    }
+}
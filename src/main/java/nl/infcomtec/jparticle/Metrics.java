@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latencies, counters and gauges of a {@link Cloud}.
+ * <p>
+ * Every request is timed per {@link Endpoint} by a {@link MeteredTransport}
+ * and counted, with the failures (an exception or a code other than 200)
+ * counted separately. For events the time from reading them off the stream
+ * to handing them to a subscriber is timed as the dispatch lag. Gauges, like
+ * queue depths, are read when asked for.
+ * <p>
+ * Recording does not lock or allocate. Everything can be read with
+ * {@link #snapshot()} or through JMX after {@link #registerMBeans}.
+ *
+ * @author walter
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * JMX domain of the MBeans.
+     */
+    public static final String DOMAIN = "nl.infcomtec.jparticle";
+    private static final Endpoint[] ENDPOINTS = Endpoint.values();
+
+    /**
+     * A value read when asked for.
+     */
+    public interface Gauge {
+
+        /**
+         * @return The current value.
+         */
+        long value();
+    }
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[ENDPOINTS.length];
+    private final LongAdder[] requests = new LongAdder[ENDPOINTS.length];
+    private final LongAdder[] errors = new LongAdder[ENDPOINTS.length];
+    /**
+     * From reading an event off the stream to handing it to a subscriber.
+     */
+    public final LatencyHistogram dispatchLag = new LatencyHistogram("EVENT_DISPATCH");
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /**
+     * Constructor.
+     */
+    public Metrics() {
+        for (Endpoint e : ENDPOINTS) {
+            latency[e.ordinal()] = new LatencyHistogram(e.name());
+            requests[e.ordinal()] = counter("requests." + e.name());
+            errors[e.ordinal()] = counter("errors." + e.name());
+        }
+    }
+
+    /**
+     * Record a request.
+     *
+     * @param endpoint What the request was.
+     * @param nanos How long it took.
+     * @param ok false if it failed.
+     */
+    public void request(Endpoint endpoint, long nanos, boolean ok) {
+        int i = endpoint.ordinal();
+        latency[i].record(nanos);
+        requests[i].increment();
+        if (!ok) {
+            errors[i].increment();
+        }
+    }
+
+    /**
+     * @param endpoint What the requests were.
+     * @return The latencies of those requests.
+     */
+    public LatencyHistogram latency(Endpoint endpoint) {
+        return latency[endpoint.ordinal()];
+    }
+
+    /**
+     * Get a counter, created if needed. Keep a reference if it is used
+     * often, finding it allocates nothing but does cost a lookup.
+     *
+     * @param name Name of the counter.
+     * @return The counter.
+     */
+    public LongAdder counter(String name) {
+        LongAdder ret = counters.get(name);
+        if (null == ret) {
+            LongAdder a = new LongAdder();
+            ret = counters.putIfAbsent(name, a);
+            if (null == ret) {
+                ret = a;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Add a gauge, replacing any with the same name.
+     *
+     * @param name Name of the gauge.
+     * @param gauge Reads the value.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        TreeMap<String, Long> ret = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            ret.put(e.getKey(), e.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        TreeMap<String, Long> ret = new TreeMap<>();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            try {
+                ret.put(e.getKey(), e.getValue().value());
+            } catch (RuntimeException ex) {
+                ret.put(e.getKey(), -1L);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return Everything, as of now.
+     */
+    public MetricsSnapshot snapshot() {
+        LinkedHashMap<String, HistogramSnapshot> lat = new LinkedHashMap<>();
+        for (LatencyHistogram h : latency) {
+            lat.put(h.name, h.snapshot());
+        }
+        lat.put(dispatchLag.name, dispatchLag.snapshot());
+        return new MetricsSnapshot(lat, getCounters(), getGauges());
+    }
+
+    /**
+     * Make the metrics visible through JMX, in the platform MBean server.
+     * The counters and gauges are {@value #DOMAIN}:type=Metrics,name=...; the
+     * latencies {@value #DOMAIN}:type=Latency,name=...,operation=....
+     *
+     * @param name Tells this cloud apart from others in the same JVM.
+     */
+    public synchronized void registerMBeans(String name) {
+        unregisterMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name)), this);
+            for (LatencyHistogram h : latency) {
+                register(server, new ObjectName(DOMAIN + ":type=Latency,name=" + ObjectName.quote(name) + ",operation=" + h.name), h);
+            }
+            register(server, new ObjectName(DOMAIN + ":type=Latency,name=" + ObjectName.quote(name) + ",operation=" + dispatchLag.name), dispatchLag);
+        } catch (JMException ex) {
+            unregisterMBeans();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Remove the MBeans registered by {@link #registerMBeans}.
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName on : registered) {
+            try {
+                server.unregisterMBean(on);
+            } catch (JMException ex) {
+                // gone already
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    private void register(MBeanServer server, ObjectName on, Object bean) throws JMException {
+        server.registerMBean(bean, on);
+        registered.add(on);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Map;
+
+/**
+ * JMX view of the counters and gauges of {@link Metrics}, registered by
+ * {@link Metrics#registerMBeans}. The latencies are separate MBeans.
+ *
+ * @author walter
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return All counters by name.
+     */
+    public Map<String, Long> getCounters();
+
+    /**
+     * @return All gauges by name, read now.
+     */
+    public Map<String, Long> getGauges();
+}
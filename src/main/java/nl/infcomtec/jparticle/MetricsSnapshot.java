@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Snapshot of all {@link Metrics} of a cloud.
+ *
+ * @author walter
+ */
+public class MetricsSnapshot {
+
+    /**
+     * Latencies by operation.
+     */
+    public final Map<String, HistogramSnapshot> latencies;
+    /**
+     * Counters by name.
+     */
+    public final Map<String, Long> counters;
+    /**
+     * Gauges by name.
+     */
+    public final Map<String, Long> gauges;
+
+    public MetricsSnapshot(Map<String, HistogramSnapshot> latencies, Map<String, Long> counters, Map<String, Long> gauges) {
+        this.latencies = Collections.unmodifiableMap(latencies);
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MetricsSnapshot{");
+        for (HistogramSnapshot h : latencies.values()) {
+            if (h.count > 0) {
+                sb.append("\n\t").append(h);
+            }
+        }
+        sb.append("\n\tcounters=").append(counters);
+        sb.append("\n\tgauges=").append(gauges);
+        return sb.append("\n}").toString();
+    }
+}
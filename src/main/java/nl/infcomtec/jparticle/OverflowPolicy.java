@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * What to do with an event for a subscriber whose queue is full.
+ *
+ * @author walter
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until there is room; this holds up the event stream for all
+     * subscribers, but no events are lost. Only for subscribers that must
+     * see every event and are known to keep up. A stream on a
+     * {@link StreamEngine} does not wait but stops reading until there is
+     * room.
+     */
+    BLOCK,
+    /**
+     * Drop the oldest queued event to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Keep only the latest event per device and event name; a new event
+     * replaces a queued one with the same device and name. If the queue is
+     * full with other events, the oldest is dropped.
+     */
+    CONFLATE
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link DevicePoll} tasks with a fixed delay between runs.
+ * <p>
+ * The timing is done by a single thread using a hashed timing wheel: a ring
+ * of buckets, one per tick, so scheduling and firing cost the same with ten
+ * or ten thousand pollers. Due pollers are handed to a bounded pool of
+ * workers, a poller blocking on the network never delays the clock. Each
+ * poller is queued at most once, so the work queue never holds more than the
+ * number of pollers.
+ * <p>
+ * The first run of each poller is delayed by a random time up to its interval
+ * (and at most the maximum jitter), so pollers added together do not keep
+ * firing together.
+ *
+ * @author walter
+ */
+public class PollEngine {
+
+    /**
+     * Resolution of the wheel in milliseconds if not specified.
+     */
+    public static final long DEFAULT_TICK = 10;
+    /**
+     * Number of buckets if not specified; with the default tick one turn of
+     * the wheel takes 5 seconds, longer intervals take extra turns.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    /**
+     * Number of worker threads if not specified.
+     */
+    public static final int DEFAULT_WORKERS = 16;
+    /**
+     * Maximum delay in milliseconds of a first run if not specified.
+     */
+    public static final long DEFAULT_MAX_JITTER = 1000;
+
+    private final long tickNanos;
+    private final int mask;
+    private final long maxJitterNanos;
+    /**
+     * The buckets, only touched by the ticker.
+     */
+    private final ArrayList<Task>[] wheel;
+    /**
+     * Tasks to put in the wheel at the next tick.
+     */
+    private final ConcurrentLinkedQueue<Task> incoming = new ConcurrentLinkedQueue<>();
+    private final ThreadPoolExecutor workers;
+    private final Random random = new Random();
+    private final AtomicInteger pollers = new AtomicInteger();
+    private long start;
+    private Thread ticker;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor with default settings.
+     */
+    public PollEngine() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, DEFAULT_WORKERS, DEFAULT_MAX_JITTER);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tick Resolution in milliseconds.
+     * @param wheelSize Number of buckets, rounded up to a power of two.
+     * @param workers Maximum number of pollers running at the same time.
+     * @param maxJitter Maximum delay in milliseconds of a first run.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PollEngine(long tick, int wheelSize, int workers, long maxJitter) {
+        if (tick < 1 || wheelSize < 1 || workers < 1) {
+            throw new IllegalArgumentException("tick, wheelSize and workers must be at least 1");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.wheel = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.maxJitterNanos = TimeUnit.MILLISECONDS.toNanos(maxJitter);
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PollWorker:" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start calling a poller.
+     *
+     * @param poller The poller.
+     * @return Handle to cancel it or get its statistics.
+     */
+    public Task schedule(DevicePoll poller) {
+        return schedule(poller, null);
+    }
+
+    /**
+     * Start calling a poller, on another executor than the workers; the
+     * timing is still done by the wheel.
+     *
+     * @param poller The poller.
+     * @param executor Runs the poller when due, null for the workers. When it
+     * rejects the poller, the poller is cancelled.
+     * @return Handle to cancel it or get its statistics.
+     */
+    public Task schedule(DevicePoll poller, Executor executor) {
+        long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, poller.interval()));
+        long jitter = Math.min(interval, maxJitterNanos);
+        long delay;
+        synchronized (random) {
+            delay = jitter > 0 ? (long) (random.nextDouble() * jitter) : 0;
+        }
+        Task task = new Task(poller, interval, executor);
+        pollers.incrementAndGet();
+        enqueue(task, System.nanoTime() + delay);
+        return task;
+    }
+
+    /**
+     * @return Number of pollers scheduled.
+     */
+    public int pollers() {
+        return pollers.get();
+    }
+
+    /**
+     * @return Number of pollers due but waiting for a worker.
+     */
+    public int backlog() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Stop the clock and the workers, running pollers are interrupted.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (this) {
+            if (null != ticker) {
+                LockSupport.unpark(ticker);
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "PollEngine{" + "pollers=" + pollers() + ", buckets=" + wheel.length + ", tick=" + TimeUnit.NANOSECONDS.toMillis(tickNanos) + " ms, workers=" + workers.getMaximumPoolSize() + ", active=" + workers.getActiveCount() + ", backlog=" + backlog() + '}';
+    }
+
+    private void enqueue(Task task, long due) {
+        task.due = due;
+        incoming.add(task);
+        synchronized (this) {
+            if (null == ticker && running) {
+                start = System.nanoTime();
+                ticker = new Thread(new Ticker(), "PollTicker");
+                ticker.setDaemon(true);
+                ticker.start();
+            }
+        }
+    }
+
+    /**
+     * Moves the clock, only one per engine.
+     */
+    private class Ticker implements Runnable {
+
+        private long tick;
+
+        @Override
+        public void run() {
+            while (running) {
+                long wait;
+                while ((wait = start + tick * tickNanos - System.nanoTime()) > 0 && running) {
+                    LockSupport.parkNanos(wait);
+                }
+                transfer();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        }
+
+        private void transfer() {
+            Task task;
+            while (null != (task = incoming.poll())) {
+                if (task.cancelled) {
+                    continue;
+                }
+                long due = (task.due - start + tickNanos - 1) / tickNanos;
+                if (due < tick) {
+                    due = tick;
+                }
+                task.rounds = (due - tick) >> Integer.numberOfTrailingZeros(wheel.length);
+                wheel[(int) (due & mask)].add(task);
+            }
+        }
+
+        private void expire(ArrayList<Task> bucket) {
+            int keep = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                Task task = bucket.get(i);
+                if (task.cancelled) {
+                    continue;
+                }
+                if (task.rounds > 0) {
+                    task.rounds--;
+                    bucket.set(keep++, task);
+                    continue;
+                }
+                if (null != task.executor) {
+                    try {
+                        task.executor.execute(task);
+                    } catch (RuntimeException ex) {
+                        task.cancel(false);
+                    }
+                    continue;
+                }
+                try {
+                    workers.execute(task);
+                } catch (RuntimeException ex) {
+                    // shut down
+                    return;
+                }
+            }
+            for (int i = bucket.size() - 1; i >= keep; i--) {
+                bucket.remove(i);
+            }
+        }
+    }
+
+    /**
+     * A scheduled poller.
+     */
+    public class Task implements Runnable {
+
+        private final DevicePoll poller;
+        private final long interval;
+        private final Executor executor;
+        /**
+         * System.nanoTime() of the next run.
+         */
+        private volatile long due;
+        /**
+         * Turns of the wheel to go, only used by the ticker.
+         */
+        private long rounds;
+        private volatile boolean cancelled;
+        /**
+         * The worker running the poller, guarded by runLock, so an interrupt
+         * from cancel() cannot reach the next poller on that worker.
+         */
+        private Thread runner;
+        private final Object runLock = new Object();
+        // statistics, guarded by this
+        private long runs;
+        private long overruns;
+        private long failures;
+        private long lastDrift;
+        private long maxDrift;
+        private long totalDrift;
+        private long lastDuration;
+        private long maxDuration;
+
+        Task(DevicePoll poller, long interval, Executor executor) {
+            this.poller = poller;
+            this.interval = interval;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            synchronized (runLock) {
+                if (cancelled) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            long begin = System.nanoTime();
+            long drift = begin - due;
+            boolean failed = false;
+            try {
+                poller.run();
+            } catch (Throwable ex) {
+                failed = true;
+                Logger.getLogger(PollEngine.class.getName()).log(Level.SEVERE, "Poller " + poller.uuid() + " failed", ex);
+            } finally {
+                synchronized (runLock) {
+                    runner = null;
+                    // do not leave an interrupt from cancel() on the worker
+                    Thread.interrupted();
+                }
+            }
+            long end = System.nanoTime();
+            long duration = end - begin;
+            synchronized (this) {
+                runs++;
+                if (failed) {
+                    failures++;
+                }
+                if (duration > interval) {
+                    overruns++;
+                }
+                lastDrift = drift;
+                maxDrift = Math.max(maxDrift, drift);
+                totalDrift += drift;
+                lastDuration = duration;
+                maxDuration = Math.max(maxDuration, duration);
+            }
+            if (!cancelled && running) {
+                enqueue(this, end + interval);
+            }
+        }
+
+        /**
+         * Stop calling the poller.
+         *
+         * @param interrupt If true and the poller is running it will be
+         * interrupted.
+         */
+        public void cancel(boolean interrupt) {
+            synchronized (runLock) {
+                if (!cancelled) {
+                    cancelled = true;
+                    pollers.decrementAndGet();
+                }
+                if (interrupt && null != runner) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        /**
+         * @return true if cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return Statistics of the poller so far.
+         */
+        public synchronized PollStats stats() {
+            return new PollStats(poller.uuid(), TimeUnit.NANOSECONDS.toMillis(interval), runs, overruns, failures,
+                    lastDrift, maxDrift, runs == 0 ? 0 : totalDrift / runs, lastDuration, maxDuration);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.UUID;
+
+/**
+ * Snapshot of the statistics of a poller, see {@link Cloud#pollStats}.
+ * <p>
+ * Drift is how late a run started compared to when it was due, because the
+ * clock ticks in steps or because all workers were busy. An overrun is a run
+ * that took longer than the interval.
+ *
+ * @author walter
+ */
+public class PollStats {
+
+    /**
+     * The poller.
+     */
+    public final UUID uuid;
+    /**
+     * Milliseconds between the end of a run and the start of the next.
+     */
+    public final long interval;
+    /**
+     * Completed runs.
+     */
+    public final long runs;
+    /**
+     * Runs that took longer than the interval.
+     */
+    public final long overruns;
+    /**
+     * Runs that threw an exception.
+     */
+    public final long failures;
+    /**
+     * Drift of the last run in nanoseconds.
+     */
+    public final long lastDrift;
+    /**
+     * Highest drift in nanoseconds.
+     */
+    public final long maxDrift;
+    /**
+     * Average drift in nanoseconds.
+     */
+    public final long meanDrift;
+    /**
+     * Duration of the last run in nanoseconds.
+     */
+    public final long lastDuration;
+    /**
+     * Longest run in nanoseconds.
+     */
+    public final long maxDuration;
+
+    public PollStats(UUID uuid, long interval, long runs, long overruns, long failures, long lastDrift, long maxDrift, long meanDrift, long lastDuration, long maxDuration) {
+        this.uuid = uuid;
+        this.interval = interval;
+        this.runs = runs;
+        this.overruns = overruns;
+        this.failures = failures;
+        this.lastDrift = lastDrift;
+        this.maxDrift = maxDrift;
+        this.meanDrift = meanDrift;
+        this.lastDuration = lastDuration;
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public String toString() {
+        return "PollStats{" + "uuid=" + uuid + ", interval=" + interval + ", runs=" + runs + ", overruns=" + overruns + ", failures=" + failures
+                + ", drift=" + StopWatch.elaspedFromNanos(lastDrift) + ", maxDrift=" + StopWatch.elaspedFromNanos(maxDrift) + ", meanDrift=" + StopWatch.elaspedFromNanos(meanDrift)
+                + ", duration=" + StopWatch.elaspedFromNanos(lastDuration) + ", maxDuration=" + StopWatch.elaspedFromNanos(maxDuration) + '}';
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Priority lanes of the {@link RateLimiter}, highest first. A request only
+ * gets to go if no request of a higher lane is waiting.
+ *
+ * @author walter
+ */
+public enum Priority {
+    /**
+     * Function calls and publishing, someone is waiting for these to act.
+     */
+    HIGH,
+    /**
+     * Reading variables.
+     */
+    NORMAL,
+    /**
+     * Fetching device information and anything else.
+     */
+    BULK
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Transport that passes every request through a {@link RateLimiter} before
+ * handing it to another transport.
+ * <p>
+ * The lane of a request follows from what it is, see
+ * {@link Endpoint#classify}. A 429 (Too Many Requests) answer slows the
+ * limiter down for the time given in the Retry-After header, or a second if
+ * there is none; the 429 itself is returned to the caller as usual. Event
+ * streams are opened without a token, they are long lived and do not count
+ * against the request rate. Asynchronous requests wait for their token
+ * without holding a thread.
+ *
+ * @author walter
+ */
+public class RateLimitedTransport implements AsyncTransport {
+
+    /**
+     * Requests per second allowed by default; the Particle cloud allows
+     * about 10000 requests per 5 minutes.
+     */
+    public static final double DEFAULT_RATE = 30;
+    /**
+     * Burst size by default.
+     */
+    public static final int DEFAULT_BURST = 60;
+    /**
+     * Milliseconds to pause after a 429 without a Retry-After.
+     */
+    public static final long DEFAULT_RETRY_AFTER = 1000;
+    private static RateLimitedTransport defaultTransport;
+
+    /**
+     * The transport to the Particle cloud for the static methods of
+     * {@link Device}, shared so they stay below the rate together.
+     *
+     * @return The default {@link HttpTransport} behind a default limiter.
+     */
+    public static synchronized RateLimitedTransport getDefault() {
+        if (null == defaultTransport) {
+            defaultTransport = create();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * A transport to the Particle cloud with a limiter of its own, so the
+     * bursts and 429 answers of one user do not slow down another.
+     *
+     * @return The default {@link HttpTransport} behind a new default limiter.
+     */
+    public static RateLimitedTransport create() {
+        return new RateLimitedTransport(HttpTransport.getDefault(), new RateLimiter(DEFAULT_RATE, DEFAULT_BURST));
+    }
+
+    /**
+     * Where the requests go.
+     */
+    public final Transport delegate;
+    /**
+     * The limiter, for its statistics.
+     */
+    public final RateLimiter limiter;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate Where the requests go.
+     * @param limiter The limiter, may be shared by several transports.
+     */
+    public RateLimitedTransport(Transport delegate, RateLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException {
+        try {
+            limiter.acquire(Endpoint.classify(method, path).priority);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted waiting for the rate limiter");
+        }
+        Response resp = delegate.exchange(method, path, accessToken, form);
+        if (resp.code == 429) {
+            limiter.throttled(retryAfter(resp.header("Retry-After")));
+        } else {
+            limiter.succeeded();
+        }
+        return resp;
+    }
+
+    @Override
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form) {
+        if (Async.blocks(delegate)) {
+            // not on the timer: the wait for a token and the request block anyway
+            return Async.now(this, method, path, accessToken, form);
+        }
+        Call call = new Call(method, path, accessToken, form);
+        call.run();
+        return call.result;
+    }
+
+    @Override
+    public InputStream stream(String path, String accessToken) throws IOException {
+        return delegate.stream(path, accessToken);
+    }
+
+    @Override
+    public TransportStats stats() {
+        return delegate.stats();
+    }
+
+    /**
+     * A request that waits for a token without a thread.
+     */
+    private class Call implements Runnable, BiConsumer<Response, Throwable> {
+
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        private final String method;
+        private final String path;
+        private final String accessToken;
+        private final String form;
+        private final Priority priority;
+        private final long firstTry = System.nanoTime();
+        private boolean retry;
+
+        Call(String method, String path, String accessToken, String form) {
+            this.method = method;
+            this.path = path;
+            this.accessToken = accessToken;
+            this.form = form;
+            this.priority = Endpoint.classify(method, path).priority;
+        }
+
+        @Override
+        public void run() {
+            long wait = limiter.tryAcquire(priority, firstTry, retry);
+            if (wait > 0) {
+                retry = true;
+                Async.schedule(this, wait);
+                return;
+            }
+            try {
+                Async.exchange(delegate, method, path, accessToken, form).whenComplete(this);
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        public void accept(Response resp, Throwable ex) {
+            if (null != ex) {
+                result.completeExceptionally(Async.unwrap(ex));
+                return;
+            }
+            if (resp.code == 429) {
+                limiter.throttled(retryAfter(resp.header("Retry-After")));
+            } else {
+                limiter.succeeded();
+            }
+            result.complete(resp);
+        }
+    }
+
+    /**
+     * Parse a Retry-After header.
+     *
+     * @param value Seconds or an HTTP date, may be null.
+     * @return Milliseconds to wait.
+     */
+    static long retryAfter(String value) {
+        if (null == value) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        value = value.trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (NumberFormatException ex) {
+            // then it is a date
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis();
+        } catch (DateTimeParseException ex) {
+            return DEFAULT_RETRY_AFTER;
+        }
+    }
+}
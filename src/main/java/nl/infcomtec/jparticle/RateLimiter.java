@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket with priority lanes, see {@link RateLimitedTransport}.
+ * <p>
+ * Tokens are added at a steady rate up to the burst size; each request takes
+ * one. A request in a lower lane only gets a token when no request in a
+ * higher lane is waiting, so function calls are never stuck behind a refresh
+ * of all devices.
+ * <p>
+ * When the cloud says we are going too fast ({@link #throttled}) all lanes
+ * stop for the time it asks and the rate is halved; every successful request
+ * after that gives back a bit of the rate until the configured rate is
+ * reached again.
+ *
+ * @author walter
+ */
+public class RateLimiter {
+
+    private static final Priority[] LANES = Priority.values();
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] lanes = new Condition[LANES.length];
+    // all below guarded by lock
+    private double rate;
+    private double tokens;
+    private long last = System.nanoTime();
+    private long pausedUntil = last;
+    private long throttles;
+    private final int[] waiting = new int[LANES.length];
+    private final long[] acquired = new long[LANES.length];
+    private final long[] waited = new long[LANES.length];
+    private final long[] totalWait = new long[LANES.length];
+    private final long[] maxWait = new long[LANES.length];
+
+    /**
+     * Constructor.
+     *
+     * @param rate Requests per second.
+     * @param burst Requests that may be made at once after a quiet period.
+     */
+    public RateLimiter(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate must be positive and burst at least 1");
+        }
+        this.maxRate = rate;
+        this.minRate = rate / 32;
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = lock.newCondition();
+        }
+    }
+
+    /**
+     * Wait for a token.
+     *
+     * @param priority Lane of the request.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void acquire(Priority priority) throws InterruptedException {
+        final int lane = priority.ordinal();
+        long begin = System.nanoTime();
+        boolean hadToWait = false;
+        lock.lockInterruptibly();
+        try {
+            waiting[lane]++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    if (higherWaiting(lane)) {
+                        lanes[lane].await();
+                    } else if (pausedUntil - now > 0) {
+                        lanes[lane].awaitNanos(pausedUntil - now);
+                    } else if (tokens >= 1) {
+                        tokens -= 1;
+                        break;
+                    } else {
+                        lanes[lane].awaitNanos(Math.max(1000, (long) ((1 - tokens) / rate * 1e9)));
+                    }
+                    hadToWait = true;
+                }
+            } finally {
+                if (--waiting[lane] == 0) {
+                    // let the lower lanes have a go
+                    for (int i = lane + 1; i < lanes.length; i++) {
+                        lanes[i].signalAll();
+                    }
+                }
+            }
+            long wait = System.nanoTime() - begin;
+            acquired[lane]++;
+            if (hadToWait) {
+                waited[lane]++;
+            }
+            totalWait[lane] += wait;
+            maxWait[lane] = Math.max(maxWait[lane], wait);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a token without waiting, for requests that wait without a thread.
+     * While a request waits this way it counts as waiting in its lane, so
+     * the lanes keep their priority.
+     *
+     * @param priority Lane of the request.
+     * @param firstTry System.nanoTime() of the first try of the request.
+     * @param retry false on the first try.
+     * @return 0 if a token was taken, or else nanoseconds to wait before
+     * trying again.
+     */
+    long tryAcquire(Priority priority, long firstTry, boolean retry) {
+        final int lane = priority.ordinal();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            long wait;
+            if (higherWaiting(lane)) {
+                wait = Math.max(1000000, (long) (1e9 / rate));
+            } else if (pausedUntil - now > 0) {
+                wait = pausedUntil - now;
+            } else if (tokens >= 1) {
+                tokens -= 1;
+                if (retry && --waiting[lane] == 0) {
+                    for (int i = lane + 1; i < lanes.length; i++) {
+                        lanes[i].signalAll();
+                    }
+                }
+                long waited = now - firstTry;
+                acquired[lane]++;
+                if (retry) {
+                    this.waited[lane]++;
+                }
+                totalWait[lane] += waited;
+                maxWait[lane] = Math.max(maxWait[lane], waited);
+                return 0;
+            } else {
+                wait = Math.max(1000, (long) ((1 - tokens) / rate * 1e9));
+            }
+            if (!retry) {
+                waiting[lane]++;
+            }
+            return wait;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the limiter the cloud refused a request for going too fast.
+     *
+     * @param retryAfter Milliseconds the cloud asked us to wait.
+     */
+    public void throttled(long retryAfter) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            throttles++;
+            rate = Math.max(minRate, rate / 2);
+            tokens = 0;
+            pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryAfter)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the limiter a request was accepted.
+     */
+    public void succeeded() {
+        lock.lock();
+        try {
+            if (rate < maxRate) {
+                refill(System.nanoTime());
+                rate = Math.min(maxRate, rate + maxRate / 20);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Requests per second currently allowed.
+     */
+    public double rate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of times the cloud said we went too fast.
+     */
+    public long throttles() {
+        lock.lock();
+        try {
+            return throttles;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the statistics of a lane.
+     *
+     * @param priority The lane.
+     * @return A snapshot of the statistics.
+     */
+    public LaneStats stats(Priority priority) {
+        int lane = priority.ordinal();
+        lock.lock();
+        try {
+            return new LaneStats(priority, acquired[lane], waited[lane], totalWait[lane], maxWait[lane], waiting[lane]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RateLimiter{rate=");
+        sb.append(String.format("%.1f", rate())).append("/").append(maxRate).append(", throttles=").append(throttles());
+        for (Priority p : LANES) {
+            sb.append(", ").append(stats(p));
+        }
+        return sb.append('}').toString();
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+        last = now;
+    }
+
+    private boolean higherWaiting(int lane) {
+        for (int i = 0; i < lane; i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * The outcome of reading one variable in a batch.
+ *
+ * @author walter
+ */
+public class ReadResult {
+
+    /**
+     * What happened.
+     */
+    public enum Status {
+        /**
+         * The value was read.
+         */
+        OK,
+        /**
+         * The device is not connected, it was not asked.
+         */
+        OFFLINE,
+        /**
+         * There is no device with that name.
+         */
+        UNKNOWN_DEVICE,
+        /**
+         * The cloud returned an error or the request failed.
+         */
+        FAILED,
+        /**
+         * The device has been failing, it was not asked, see
+         * {@link CircuitBreaker}.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * No answer before the deadline.
+         */
+        TIMED_OUT
+    }
+    /**
+     * What happened.
+     */
+    public final Status status;
+    /**
+     * The value if the status is OK, else null.
+     */
+    public final Object value;
+    /**
+     * Time taken by the request in nanoseconds, 0 if no request was made.
+     */
+    public final long latencyNanos;
+    /**
+     * The reason for a failure, if known.
+     */
+    public final Exception error;
+
+    public ReadResult(Status status, Object value, long latencyNanos, Exception error) {
+        this.status = status;
+        this.value = value;
+        this.latencyNanos = latencyNanos;
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadResult{" + "status=" + status + ", value=" + value + ", latency=" + StopWatch.elaspedFromNanos(latencyNanos).trim() + (null == error ? "" : ", error=" + error) + '}';
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Outcome of an {@link EventReplay}.
+ *
+ * @author walter
+ */
+public class ReplayStats {
+
+    /**
+     * Events dispatched.
+     */
+    public final long events;
+    /**
+     * Events in the source that could not be parsed.
+     */
+    public final long skipped;
+    /**
+     * From the first event to all subscribers being done, in nanoseconds.
+     */
+    public final long elapsed;
+    /**
+     * Events per second achieved.
+     */
+    public final double eventsPerSecond;
+    /**
+     * How far dispatching fell behind the schedule at worst, in milliseconds;
+     * 0 when not paced.
+     */
+    public final long maxBehind;
+    /**
+     * From dispatch to the call-back, for the events of this replay.
+     */
+    public final HistogramSnapshot dispatchLag;
+
+    public ReplayStats(long events, long skipped, long elapsed, long maxBehind, HistogramSnapshot dispatchLag) {
+        this.events = events;
+        this.skipped = skipped;
+        this.elapsed = elapsed;
+        this.eventsPerSecond = elapsed > 0 ? events * 1e9 / elapsed : 0;
+        this.maxBehind = maxBehind;
+        this.dispatchLag = dispatchLag;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayStats{" + "events=" + events + ", skipped=" + skipped + ", elapsed=" + elapsed / 1000000 + "ms"
+                + ", eventsPerSecond=" + String.format("%.1f", eventsPerSecond) + ", maxBehind=" + maxBehind + "ms"
+                + ", dispatchLag=" + dispatchLag + '}';
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport that retries failed requests and stops sending requests to
+ * devices that keep failing.
+ * <p>
+ * Every device gets its own {@link CircuitBreaker}; while it is open
+ * requests for that device throw a {@link CircuitOpenException} at once
+ * instead of tying up a thread until the device times out again. Requests that
+ * are not for one device (the device list, publishing) are only retried.
+ * Answers that say nothing about the health of the device, like 404 or 429,
+ * do not count as failures of the device. A breaker that opens or closes is
+ * logged once, the requests it refuses are not.
+ * <p>
+ * When a request keeps failing the last answer is returned, or the last
+ * exception thrown, so callers see the same as without this transport.
+ * Asynchronous requests wait for a retry without holding a thread.
+ *
+ * @author walter
+ */
+public class ResilientTransport implements AsyncTransport {
+
+    /**
+     * Failures in a row that open a breaker by default.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    /**
+     * Milliseconds a breaker stays open by default.
+     */
+    public static final long DEFAULT_OPEN_TIME = 30000;
+    private static ResilientTransport defaultTransport;
+
+    /**
+     * The transport to the Particle cloud for the static methods of
+     * {@link Device}, shared by all of them.
+     *
+     * @return {@link RateLimitedTransport#getDefault()} with the default
+     * retries and breakers.
+     */
+    public static synchronized ResilientTransport getDefault() {
+        if (null == defaultTransport) {
+            defaultTransport = new ResilientTransport(RateLimitedTransport.getDefault(), RetryPolicy.DEFAULT,
+                    DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * A transport to the Particle cloud with a rate limiter and breakers of
+     * its own, used by a {@link Cloud} when none is specified. The
+     * connections are shared.
+     *
+     * @return {@link RateLimitedTransport#create()} with the default retries
+     * and breakers.
+     */
+    public static ResilientTransport create() {
+        return new ResilientTransport(RateLimitedTransport.create(), RetryPolicy.DEFAULT, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+    }
+
+    /**
+     * Logs a breaker that opens or closes; the trials in between at FINE.
+     */
+    private static final CircuitBreaker.Listener LOG = new CircuitBreaker.Listener() {
+        @Override
+        public void stateChanged(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+            Level level = Level.FINE;
+            if (from == CircuitBreaker.State.CLOSED) {
+                level = Level.WARNING;
+            } else if (to == CircuitBreaker.State.CLOSED) {
+                level = Level.INFO;
+            }
+            Logger.getLogger(ResilientTransport.class.getName()).log(level, "Breaker of device {0} went from {1} to {2}",
+                    new Object[]{breaker.name, from, to});
+        }
+    };
+    /**
+     * Where the requests go.
+     */
+    public final Transport delegate;
+    /**
+     * When to try again.
+     */
+    public final RetryPolicy retryPolicy;
+    private final int failureThreshold;
+    private final long openTime;
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<CircuitBreaker.Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param delegate Where the requests go.
+     * @param retryPolicy When to try again.
+     * @param failureThreshold Failures in a row that open the breaker of a
+     * device.
+     * @param openTime Milliseconds a breaker stays open before a request is
+     * tried again.
+     */
+    public ResilientTransport(Transport delegate, RetryPolicy retryPolicy, int failureThreshold, long openTime) {
+        this.delegate = delegate;
+        this.retryPolicy = retryPolicy;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        listeners.add(LOG);
+    }
+
+    /**
+     * Get told when a breaker opens or closes.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(CircuitBreaker.Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener The listener to remove.
+     */
+    public void removeListener(CircuitBreaker.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the breaker of a device.
+     *
+     * @param deviceId Id of the device.
+     * @return The breaker, created if needed.
+     */
+    public CircuitBreaker breaker(String deviceId) {
+        CircuitBreaker ret = breakers.get(deviceId);
+        if (null == ret) {
+            CircuitBreaker b = new CircuitBreaker(deviceId, failureThreshold, openTime, listeners);
+            ret = breakers.putIfAbsent(deviceId, b);
+            if (null == ret) {
+                ret = b;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The state of the breaker of every device that made a request,
+     * by device id.
+     */
+    public Map<String, CircuitBreaker.State> breakerStates() {
+        TreeMap<String, CircuitBreaker.State> ret = new TreeMap<>();
+        for (CircuitBreaker b : breakers.values()) {
+            ret.put(b.name, b.state());
+        }
+        return ret;
+    }
+
+    @Override
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException {
+        Endpoint endpoint = Endpoint.classify(method, path);
+        String deviceId = Endpoint.deviceId(path);
+        CircuitBreaker breaker = null == deviceId ? null : breaker(deviceId);
+        for (int attempt = 1;; attempt++) {
+            if (null != breaker) {
+                long retryIn = breaker.allow();
+                if (retryIn > 0) {
+                    throw new CircuitOpenException(deviceId, retryIn);
+                }
+            }
+            Response resp;
+            try {
+                resp = delegate.exchange(method, path, accessToken, form);
+            } catch (IOException ex) {
+                if (null != breaker) {
+                    if (ex instanceof InterruptedIOException) {
+                        breaker.ignore();
+                    } else {
+                        breaker.failure();
+                    }
+                }
+                if (attempt >= retryPolicy.maxAttempts || !retryPolicy.retryable(endpoint, ex)) {
+                    throw ex;
+                }
+                pause(attempt);
+                continue;
+            }
+            if (null != breaker) {
+                if (resp.code == 408 || resp.code >= 500) {
+                    breaker.failure();
+                } else if (resp.code == 429) {
+                    breaker.ignore();
+                } else {
+                    breaker.success();
+                }
+            }
+            if (attempt >= retryPolicy.maxAttempts || !retryPolicy.retryable(endpoint, resp.code)) {
+                return resp;
+            }
+            pause(attempt);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form) {
+        if (Async.blocks(delegate)) {
+            // not on the timer: the retries and the request block anyway
+            return Async.now(this, method, path, accessToken, form);
+        }
+        Call call = new Call(method, path, accessToken, form);
+        call.run();
+        return call.result;
+    }
+
+    @Override
+    public InputStream stream(String path, String accessToken) throws IOException {
+        return delegate.stream(path, accessToken);
+    }
+
+    @Override
+    public TransportStats stats() {
+        return delegate.stats();
+    }
+
+    /**
+     * A request that waits for a retry without a thread, the same steps as
+     * {@link #exchange}.
+     */
+    private class Call implements Runnable, BiConsumer<Response, Throwable> {
+
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        private final String method;
+        private final String path;
+        private final String accessToken;
+        private final String form;
+        private final Endpoint endpoint;
+        private final String deviceId;
+        private final CircuitBreaker breaker;
+        private int attempt;
+
+        Call(String method, String path, String accessToken, String form) {
+            this.method = method;
+            this.path = path;
+            this.accessToken = accessToken;
+            this.form = form;
+            this.endpoint = Endpoint.classify(method, path);
+            this.deviceId = Endpoint.deviceId(path);
+            this.breaker = null == deviceId ? null : breaker(deviceId);
+        }
+
+        @Override
+        public void run() {
+            attempt++;
+            if (null != breaker) {
+                long retryIn = breaker.allow();
+                if (retryIn > 0) {
+                    result.completeExceptionally(new CircuitOpenException(deviceId, retryIn));
+                    return;
+                }
+            }
+            try {
+                Async.exchange(delegate, method, path, accessToken, form).whenComplete(this);
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        public void accept(Response resp, Throwable t) {
+            if (null != t) {
+                Throwable cause = Async.unwrap(t);
+                if (!(cause instanceof IOException)) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                IOException ex = (IOException) cause;
+                if (null != breaker) {
+                    if (ex instanceof InterruptedIOException) {
+                        breaker.ignore();
+                    } else {
+                        breaker.failure();
+                    }
+                }
+                if (attempt >= retryPolicy.maxAttempts || !retryPolicy.retryable(endpoint, ex)) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+            } else {
+                if (null != breaker) {
+                    if (resp.code == 408 || resp.code >= 500) {
+                        breaker.failure();
+                    } else if (resp.code == 429) {
+                        breaker.ignore();
+                    } else {
+                        breaker.success();
+                    }
+                }
+                if (attempt >= retryPolicy.maxAttempts || !retryPolicy.retryable(endpoint, resp.code)) {
+                    result.complete(resp);
+                    return;
+                }
+            }
+            Async.schedule(this, TimeUnit.MILLISECONDS.toNanos(retryPolicy.backoff(attempt)));
+        }
+    }
+
+    private void pause(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(retryPolicy.backoff(attempt));
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+}
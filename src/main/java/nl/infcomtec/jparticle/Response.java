@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONTokener;
+
+/**
+ * A completely read response from the cloud.
+ *
+ * @author walter
+ */
+public class Response {
+
+    /**
+     * HTTP status code.
+     */
+    public final int code;
+    /**
+     * The body, never null.
+     */
+    public final byte[] body;
+    /**
+     * Response headers, keys are case insensitive.
+     */
+    private final TreeMap<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Constructor.
+     *
+     * @param code HTTP status code.
+     * @param body The body, may be null.
+     * @param headers Response headers, may be null.
+     */
+    public Response(int code, byte[] body, Map<String, List<String>> headers) {
+        this.code = code;
+        this.body = null == body ? new byte[0] : body;
+        if (null != headers) {
+            for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+                // the status line is stored with a null key
+                if (null != e.getKey()) {
+                    this.headers.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the code is 200.
+     */
+    public boolean isOk() {
+        return code == 200;
+    }
+
+    /**
+     * Get a header.
+     *
+     * @param name Name of the header, case insensitive.
+     * @return The first value or null if there is no such header.
+     */
+    public String header(String name) {
+        List<String> l = headers.get(name);
+        if (null == l || l.isEmpty()) {
+            return null;
+        }
+        return l.get(0);
+    }
+
+    /**
+     * @return All headers, read-only.
+     */
+    public Map<String, List<String>> headers() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return The body as JSON tokens.
+     */
+    public JSONTokener tokener() {
+        return new JSONTokener(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return The body as text.
+     */
+    public String text() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "Response{" + "code=" + code + ", body=" + body.length + " bytes}";
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how long to wait before trying a request again, see
+ * {@link ResilientTransport}.
+ * <p>
+ * The wait grows exponentially with each attempt up to a maximum, and is a
+ * random part of that ("full jitter") so failing clients do not all come back
+ * at the same moment.
+ * <p>
+ * Reads are retried on I/O errors, 408 (the device did not answer in time),
+ * 429 and 5xx. Function calls and publishing change something, so they are
+ * only retried when the cloud certainly did not act on them: 429, 503 and
+ * failures to connect.
+ *
+ * @author walter
+ */
+public class RetryPolicy {
+
+    /**
+     * No retries.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+    /**
+     * Three attempts, waiting up to 200 ms and then 400 ms.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 200, 5000);
+
+    /**
+     * Maximum number of attempts, including the first.
+     */
+    public final int maxAttempts;
+    /**
+     * Milliseconds of the first wait.
+     */
+    public final long baseDelay;
+    /**
+     * Upper bound of a wait in milliseconds.
+     */
+    public final long maxDelay;
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts Maximum number of attempts, including the first.
+     * @param baseDelay Milliseconds of the first wait.
+     * @param maxDelay Upper bound of a wait in milliseconds.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Time to wait before the next attempt.
+     *
+     * @param attempt Attempts made so far, 1 after the first.
+     * @return Milliseconds to wait.
+     */
+    public long backoff(int attempt) {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(30, attempt - 1));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Is an answer worth trying again?
+     *
+     * @param endpoint What the request was.
+     * @param code The HTTP status code.
+     * @return true if it may work next time.
+     */
+    public boolean retryable(Endpoint endpoint, int code) {
+        if (code == 429 || code == 503) {
+            return true;
+        }
+        return !changes(endpoint) && (code == 408 || code >= 500);
+    }
+
+    /**
+     * Is an I/O error worth trying again?
+     *
+     * @param endpoint What the request was.
+     * @param ex What went wrong.
+     * @return true if it may work next time.
+     */
+    public boolean retryable(Endpoint endpoint, IOException ex) {
+        if (ex instanceof CircuitOpenException || ex instanceof UnknownHostException) {
+            return false;
+        }
+        return ex instanceof ConnectException || !changes(endpoint);
+    }
+
+    private static boolean changes(Endpoint endpoint) {
+        return endpoint == Endpoint.FUNCTION_CALL || endpoint == Endpoint.PUBLISH;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" + "maxAttempts=" + maxAttempts + ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay + '}';
+    }
+}
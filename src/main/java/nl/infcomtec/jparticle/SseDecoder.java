@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes a server-sent event stream, working on bytes.
+ * <p>
+ * Follows the SSE specification: lines end in LF, CR or CR LF, the fields
+ * "event", "data", "id" and "retry" are recognized, lines starting with a
+ * colon are comments (keep-alives) and an empty line ends an event. Several
+ * data lines are joined with a LF. All buffers are re-used, so apart from the
+ * event name (which comes from a small cache) decoding does not allocate.
+ * <p>
+ * Bytes can be pushed in any chunks using {@link #feed}, or pulled from a
+ * stream using {@link #read}. Not thread safe, use one per stream.
+ *
+ * @author walter
+ */
+class SseDecoder {
+
+    /**
+     * Receives the decoded events.
+     */
+    interface Handler {
+
+        /**
+         * Called for each complete event.
+         *
+         * @param eventName The event name, "message" if none was given.
+         * @param data The data lines, only valid during this call.
+         * @param length Number of bytes in data.
+         * @throws IOException To stop decoding.
+         */
+        void event(String eventName, byte[] data, int length) throws IOException;
+    }
+    private static final byte[] EVENT = {'e', 'v', 'e', 'n', 't'};
+    private static final byte[] DATA = {'d', 'a', 't', 'a'};
+    private static final byte[] ID = {'i', 'd'};
+    private static final byte[] RETRY = {'r', 'e', 't', 'r', 'y'};
+    private final Handler handler;
+    private final StringCache names = new StringCache();
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private byte[] data = new byte[1024];
+    private int dataLength;
+    private boolean hasData;
+    private String eventName;
+    private boolean lastWasCR;
+    private String lastEventId;
+    private long retry = -1;
+    private long comments;
+
+    /**
+     * Constructor.
+     *
+     * @param handler Receives the events.
+     */
+    SseDecoder(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Decode a stream until it ends.
+     *
+     * @param is The stream, will be closed.
+     * @throws IOException On errors reading the stream or from the handler.
+     */
+    void read(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            byte[] readBuffer = new byte[8192];
+            int n;
+            while ((n = in.read(readBuffer)) >= 0) {
+                feed(readBuffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Decode some bytes; incomplete lines are kept for the next call.
+     *
+     * @param buf The bytes.
+     * @param off Where they start.
+     * @param len How many.
+     * @throws IOException From the handler.
+     */
+    void feed(byte[] buf, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            byte b = buf[i];
+            if (b == '\n' || b == '\r') {
+                if (b == '\n' && lastWasCR && i == start && lineLength == 0) {
+                    // second half of a CR LF
+                    lastWasCR = false;
+                    start = i + 1;
+                    continue;
+                }
+                append(buf, start, i - start);
+                line(line, lineLength);
+                lineLength = 0;
+                lastWasCR = b == '\r';
+                start = i + 1;
+            } else {
+                lastWasCR = false;
+            }
+        }
+        append(buf, start, end - start);
+    }
+
+    /**
+     * @return The last event id seen, or null.
+     */
+    String lastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return The last reconnection time the server asked for, or -1.
+     */
+    long retry() {
+        return retry;
+    }
+
+    /**
+     * @return Number of comment (keep-alive) lines seen.
+     */
+    long comments() {
+        return comments;
+    }
+
+    /**
+     * @return Size of the line and data buffers, they grow with the longest
+     * line and event.
+     */
+    int bufferBytes() {
+        return line.length + data.length;
+    }
+
+    private void append(byte[] buf, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+        System.arraycopy(buf, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void line(byte[] b, int len) throws IOException {
+        if (len == 0) {
+            if (hasData) {
+                handler.event(null == eventName ? "message" : eventName, data, dataLength);
+            }
+            hasData = false;
+            dataLength = 0;
+            eventName = null;
+            return;
+        }
+        if (b[0] == ':') {
+            comments++;
+            return;
+        }
+        int colon = 0;
+        while (colon < len && b[colon] != ':') {
+            colon++;
+        }
+        int value = colon + 1;
+        if (value < len && b[value] == ' ') {
+            value++;
+        }
+        if (value > len) {
+            value = len;
+        }
+        if (is(DATA, b, colon)) {
+            if (hasData) {
+                appendData((byte) '\n');
+            }
+            hasData = true;
+            for (int i = value; i < len; i++) {
+                appendData(b[i]);
+            }
+        } else if (is(EVENT, b, colon)) {
+            eventName = names.get(b, value, len - value);
+        } else if (is(ID, b, colon)) {
+            lastEventId = names.get(b, value, len - value);
+        } else if (is(RETRY, b, colon)) {
+            long r = 0;
+            for (int i = value; i < len; i++) {
+                if (b[i] < '0' || b[i] > '9') {
+                    return;
+                }
+                r = r * 10 + b[i] - '0';
+            }
+            retry = r;
+        }
+    }
+
+    private void appendData(byte b) {
+        if (dataLength == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[dataLength++] = b;
+    }
+
+    private static boolean is(byte[] field, byte[] b, int len) {
+        if (len != field.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (b[i] != field[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,838 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Reads the event streams of many Clouds on a few selector threads, instead
+ * of a thread per stream; see {@link Cloud#streamEvents}.
+ * <p>
+ * A stream is an HTTP/1.1 GET over a non-blocking socket, through an
+ * SSLEngine for https, with a chunked or a plain body. The bytes are decoded
+ * as they arrive and the events go to the dispatch of their Cloud, the same
+ * as from a reading thread. A stream that fails or ends is opened again after
+ * {@link #RECONNECT_DELAY} milliseconds, or the retry time the server sent.
+ * <p>
+ * Dispatch runs on the selector thread, which never waits for a subscriber.
+ * When a subscriber with {@link OverflowPolicy#BLOCK} has a full queue the
+ * event is queued anyway and the stream stops reading until there is room
+ * again; the server then waits for the stream, the other streams go on. So
+ * the queue can run over by what was already read, at most a buffer.
+ * <p>
+ * Memory per stream is its buffers, see {@link StreamEngineStats#bufferBytes},
+ * plus the decoder and socket objects. Measured with 1000 streams to the
+ * server in another process on Java 17, all on one selector thread: about
+ * 22 kB per http stream and 72 kB per https stream, of which 10.6 and 52.6
+ * kB buffers; TLS needs a network and an application buffer per direction.
+ * A reading thread needs the same buffers, plus its stack: 1 MB reserved
+ * and some tens of kB used. Buffers are let go while a stream waits to
+ * reconnect.
+ *
+ * @author walter
+ */
+public class StreamEngine implements AutoCloseable {
+
+    /**
+     * Selector threads of {@link #getDefault()}.
+     */
+    public static final int DEFAULT_SELECTORS = 1;
+    /**
+     * Milliseconds before opening a failed stream again, unless the server
+     * sent a retry time.
+     */
+    public static final long RECONNECT_DELAY = 5000;
+    /**
+     * Read buffer of a plain stream.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Longest status, header or chunk size line.
+     */
+    private static final int MAX_LINE = 8192;
+    /**
+     * Most reads of one stream before the others get their turn.
+     */
+    private static final int MAX_SPINS = 16;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static StreamEngine shared;
+
+    /**
+     * @return The engine shared by all Clouds in the JVM, started when first
+     * asked for.
+     */
+    public static synchronized StreamEngine getDefault() {
+        if (null == shared || shared.closed) {
+            try {
+                shared = new StreamEngine(DEFAULT_SELECTORS, null);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Find where the requests of a transport go.
+     *
+     * @param t The transport, possibly wrapped.
+     * @return The base URL of the HttpTransport inside, or null.
+     */
+    static String baseUrl(Transport t) {
+        while (true) {
+            if (t instanceof HttpTransport) {
+                return ((HttpTransport) t).baseUrl;
+            } else if (t instanceof MeteredTransport) {
+                t = ((MeteredTransport) t).delegate;
+            } else if (t instanceof ResilientTransport) {
+                t = ((ResilientTransport) t).delegate;
+            } else if (t instanceof RateLimitedTransport) {
+                t = ((RateLimitedTransport) t).delegate;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private final Loop[] loops;
+    private final SSLContext sslContext;
+    private final Set<Stream> streams = Collections.newSetFromMap(new ConcurrentHashMap<Stream, Boolean>());
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Constructor, starts the selector threads.
+     *
+     * @param selectors Number of selector threads.
+     * @param sslContext For https streams, null for the default of the JVM.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public StreamEngine(int selectors, SSLContext sslContext) throws IOException {
+        if (selectors < 1) {
+            throw new IllegalArgumentException("selectors must be at least 1");
+        }
+        this.sslContext = sslContext;
+        this.loops = new Loop[selectors];
+        for (int i = 0; i < selectors; i++) {
+            loops[i] = new Loop(i + 1);
+        }
+    }
+
+    /**
+     * Open an event stream and keep it open until closed.
+     *
+     * @param cloud Gets the events.
+     * @param url The stream, http or https.
+     * @param accessToken Sent as the Authorization header, may be null.
+     * @return The stream.
+     * @throws IOException If the engine is closed or the URL is not usable.
+     */
+    public Stream open(Cloud cloud, String url, String accessToken) throws IOException {
+        if (closed) {
+            throw new IOException("Stream engine is closed");
+        }
+        URL u = new URL(url);
+        if (!u.getProtocol().equals("http") && !u.getProtocol().equals("https")) {
+            throw new MalformedURLException("Not http or https: " + url);
+        }
+        Stream s = new Stream(cloud, u, accessToken, loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length]);
+        streams.add(s);
+        s.connect();
+        return s;
+    }
+
+    /**
+     * @return A snapshot of the statistics.
+     */
+    public StreamEngineStats stats() {
+        int n = 0;
+        int connected = 0;
+        long buffers = 0;
+        for (Stream s : streams) {
+            n++;
+            if (s.connected) {
+                connected++;
+            }
+            buffers += s.bufferBytes;
+        }
+        return new StreamEngineStats(loops.length, n, connected, events.sum(), bytesRead.sum(), reconnects.sum(), buffers);
+    }
+
+    /**
+     * Close all streams and stop the selector threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Stream s : streams) {
+            s.close();
+        }
+        for (Loop l : loops) {
+            l.selector.wakeup();
+        }
+        for (Loop l : loops) {
+            try {
+                l.thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamEngine{" + stats() + '}';
+    }
+
+    private SSLContext ssl() throws IOException {
+        if (null != sslContext) {
+            return sslContext;
+        }
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * A selector thread with its streams.
+     */
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        /**
+         * Work for this thread from other threads.
+         */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop(int n) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "JParticle-streams-" + n);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    Runnable task;
+                    while (null != (task = tasks.poll())) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            Logger.getLogger(StreamEngine.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid()) {
+                            Stream s = (Stream) key.attachment();
+                            try {
+                                s.ready(key);
+                            } catch (Exception ex) {
+                                s.fail(ex);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(StreamEngine.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    ((Stream) key.attachment()).disconnect();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    // going away anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Where the body of the response is.
+     */
+    private enum Phase {
+        STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER
+    }
+
+    /**
+     * One event stream. Apart from the volatile fields its state belongs to
+     * the selector thread.
+     */
+    public final class Stream {
+
+        /**
+         * Where the stream is read from.
+         */
+        public final String url;
+        private final Cloud cloud;
+        private final String host;
+        private final int port;
+        private final boolean tls;
+        private final byte[] request;
+        private final Loop loop;
+        private volatile boolean closed;
+        private volatile boolean connected;
+        private volatile int bufferBytes;
+        /**
+         * Retry time the server sent, or -1.
+         */
+        private volatile long retry = -1;
+        private int attempt;
+        /**
+         * Not reading until a subscriber has room again.
+         */
+        private boolean paused;
+        /**
+         * Given to the subscribers, see {@link Subscription#deliver}.
+         */
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!paused) {
+                            return;
+                        }
+                        paused = false;
+                        if (null != channel) {
+                            try {
+                                pump();
+                            } catch (Exception ex) {
+                                fail(ex);
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        private SocketChannel channel;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer out;
+        private SseDecoder decoder;
+        private Phase phase;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private boolean chunked;
+        /**
+         * Bytes left of the chunk or body, -1 if not known.
+         */
+        private long remaining;
+
+        private Stream(final Cloud cloud, URL u, String accessToken, Loop loop) {
+            this.url = u.toString();
+            this.cloud = cloud;
+            this.host = u.getHost();
+            this.port = u.getPort() < 0 ? u.getDefaultPort() : u.getPort();
+            this.tls = u.getProtocol().equals("https");
+            this.loop = loop;
+            StringBuilder sb = new StringBuilder();
+            sb.append("GET ").append(u.getFile().isEmpty() ? "/" : u.getFile()).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(u.getPort() < 0 ? host : host + ":" + port).append("\r\n");
+            if (null != accessToken) {
+                sb.append("Authorization: ").append(accessToken).append("\r\n");
+            }
+            sb.append("Accept: text/event-stream\r\nCache-Control: no-cache\r\n\r\n");
+            this.request = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return true if connected and receiving events.
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * Close the stream, it will not be opened again.
+         */
+        public void close() {
+            closed = true;
+            streams.remove(this);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    disconnect();
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "Stream{" + "url=" + url + ", connected=" + connected + ", bufferBytes=" + bufferBytes + '}';
+        }
+
+        /**
+         * Look up the host on the calls bulkhead of the Cloud, then start
+         * connecting on the selector thread. Called from the timer on a
+         * reconnect, which like the selector thread must not wait for DNS.
+         */
+        private void connect() {
+            if (closed || StreamEngine.this.closed) {
+                return;
+            }
+            try {
+                cloud.calls().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolve();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the Cloud is closed, and so are its streams
+            }
+        }
+
+        private void resolve() {
+            final InetSocketAddress address;
+            try {
+                address = new InetSocketAddress(InetAddress.getByName(host), port);
+            } catch (UnknownHostException ex) {
+                later(ex);
+                return;
+            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    start(address);
+                }
+            });
+        }
+
+        private void start(InetSocketAddress address) {
+            if (closed) {
+                return;
+            }
+            final int current = ++attempt;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (tls) {
+                    engine = ssl().createSSLEngine(host, port);
+                    engine.setUseClientMode(true);
+                    SSLParameters params = engine.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(params);
+                    SSLSession session = engine.getSession();
+                    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                    netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                    netOut.flip();
+                    appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+                    out = ByteBuffer.wrap(request);
+                } else {
+                    netIn = ByteBuffer.allocate(BUFFER_SIZE);
+                    netOut = ByteBuffer.wrap(request);
+                }
+                final EventParser parser = new EventParser(cloud);
+                decoder = new SseDecoder(new SseDecoder.Handler() {
+                    @Override
+                    public void event(String eventName, byte[] data, int length) throws IOException {
+                        events.increment();
+                        Event e = parser.parse(eventName, data, length);
+                        if (null != e && !cloud.received(e, resume)) {
+                            paused = true;
+                        }
+                    }
+                });
+                phase = Phase.STATUS;
+                lineLength = 0;
+                chunked = false;
+                remaining = -1;
+                measure();
+                if (channel.connect(address)) {
+                    opened();
+                } else {
+                    channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+                return;
+            }
+            Async.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (attempt == current && null != channel && !connected) {
+                                fail(new SocketTimeoutException("No response from " + url));
+                            }
+                        }
+                    });
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(HttpTransport.DEFAULT_READ_TIMEOUT));
+        }
+
+        private void ready(SelectionKey key) throws IOException {
+            if (key.channel() != channel) {
+                key.cancel();
+                return;
+            }
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    opened();
+                }
+                return;
+            }
+            pump();
+        }
+
+        private void opened() throws IOException {
+            if (tls) {
+                engine.beginHandshake();
+            }
+            pump();
+        }
+
+        /**
+         * Write what is pending and read what is there, until the socket has
+         * nothing more for now or a subscriber is full.
+         */
+        private void pump() throws IOException {
+            boolean progress = true;
+            for (int spins = 0; progress && spins < MAX_SPINS && null != channel; spins++) {
+                progress = false;
+                if (netOut.hasRemaining() && channel.write(netOut) > 0) {
+                    progress = true;
+                }
+                if (!paused && tls && unwrap()) {
+                    progress = true;
+                }
+                if (paused) {
+                    // only the writes until a subscriber has room
+                    continue;
+                }
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    throw new EOFException("Stream ended");
+                }
+                if (n > 0) {
+                    bytesRead.add(n);
+                    progress = true;
+                    if (!tls) {
+                        netIn.flip();
+                        consume(netIn);
+                        netIn.clear();
+                    }
+                }
+            }
+            if (null != channel) {
+                int ops = (paused ? 0 : SelectionKey.OP_READ) | (netOut.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+                SelectionKey key = channel.keyFor(loop.selector);
+                if (null == key) {
+                    channel.register(loop.selector, ops, this);
+                } else {
+                    key.interestOps(ops);
+                }
+            }
+        }
+
+        /**
+         * Move the TLS engine along: the handshake, the request out and the
+         * response in.
+         *
+         * @return true if anything happened.
+         */
+        private boolean unwrap() throws IOException {
+            boolean progress = false;
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while (null != (task = engine.getDelegatedTask())) {
+                        task.run();
+                    }
+                    progress = true;
+                    continue;
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        || (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && out.hasRemaining())) {
+                    if (netOut.hasRemaining()) {
+                        // the socket first
+                        return progress;
+                    }
+                    netOut.clear();
+                    SSLEngineResult r = engine.wrap(hs == SSLEngineResult.HandshakeStatus.NEED_WRAP ? EMPTY : out, netOut);
+                    netOut.flip();
+                    if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS closed");
+                    }
+                    channel.write(netOut);
+                    progress = true;
+                    continue;
+                }
+                netIn.flip();
+                SSLEngineResult r;
+                try {
+                    r = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+                switch (r.getStatus()) {
+                    case CLOSED:
+                        throw new EOFException("TLS closed");
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        measure();
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining()) {
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                            measure();
+                        }
+                        return progress;
+                    default:
+                }
+                if (appIn.position() > 0) {
+                    appIn.flip();
+                    consume(appIn);
+                    appIn.clear();
+                    if (paused) {
+                        // the rest stays in netIn until resumed
+                        return true;
+                    }
+                }
+                if (r.bytesConsumed() == 0 && r.bytesProduced() == 0 && engine.getHandshakeStatus() == hs) {
+                    return progress;
+                }
+                progress = true;
+            }
+        }
+
+        private ByteBuffer grow(ByteBuffer b, int size) {
+            ByteBuffer ret = ByteBuffer.allocate(Math.max(size, b.capacity() * 2));
+            b.flip();
+            ret.put(b);
+            return ret;
+        }
+
+        /**
+         * Parse the response: status, headers and a chunked or plain body,
+         * the body going to the decoder.
+         *
+         * @param buf The bytes, all consumed.
+         */
+        private void consume(ByteBuffer buf) throws IOException {
+            byte[] a = buf.array();
+            int pos = buf.arrayOffset() + buf.position();
+            int end = buf.arrayOffset() + buf.limit();
+            while (pos < end && null != decoder) {
+                if (phase == Phase.BODY || phase == Phase.CHUNK_DATA) {
+                    int n = remaining < 0 ? end - pos : (int) Math.min(end - pos, remaining);
+                    decoder.feed(a, pos, n);
+                    pos += n;
+                    if (remaining > 0) {
+                        remaining -= n;
+                        if (remaining == 0) {
+                            if (phase == Phase.BODY) {
+                                throw new EOFException("Stream ended");
+                            }
+                            phase = Phase.CHUNK_END;
+                        }
+                    }
+                    continue;
+                }
+                byte b = a[pos++];
+                if (b == '\n') {
+                    line();
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    if (lineLength == line.length) {
+                        if (lineLength >= MAX_LINE) {
+                            throw new IOException("Line too long in the response from " + url);
+                        }
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            buf.position(buf.limit());
+        }
+
+        private void line() throws IOException {
+            switch (phase) {
+                case STATUS: {
+                    String s = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+                    int sp = s.indexOf(' ');
+                    if (!s.startsWith("HTTP/") || sp < 0 || !s.startsWith("200", sp + 1)) {
+                        throw new IOException("Response from " + url + ": " + s);
+                    }
+                    phase = Phase.HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    if (lineLength == 0) {
+                        if (!chunked && remaining == 0) {
+                            throw new EOFException("Stream ended");
+                        }
+                        phase = chunked ? Phase.CHUNK_SIZE : Phase.BODY;
+                        connected = true;
+                        break;
+                    }
+                    String s = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+                    int colon = s.indexOf(':');
+                    if (colon > 0) {
+                        String name = s.substring(0, colon).trim();
+                        String value = s.substring(colon + 1).trim();
+                        if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                            chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                        } else if (name.equalsIgnoreCase("Content-Length")) {
+                            try {
+                                remaining = Long.parseLong(value);
+                            } catch (NumberFormatException ex) {
+                                throw new IOException("Bad Content-Length from " + url + ": " + value);
+                            }
+                        }
+                    }
+                    break;
+                }
+                case CHUNK_SIZE: {
+                    long size = 0;
+                    int digits = 0;
+                    for (int i = 0; i < lineLength && line[i] != ';' && line[i] != ' '; i++, digits++) {
+                        int d = Character.digit(line[i], 16);
+                        if (d < 0 || digits >= 15) {
+                            throw new IOException("Bad chunk size from " + url);
+                        }
+                        size = size * 16 + d;
+                    }
+                    if (digits == 0) {
+                        throw new IOException("Bad chunk size from " + url);
+                    }
+                    remaining = size;
+                    phase = size == 0 ? Phase.TRAILER : Phase.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_END:
+                    phase = Phase.CHUNK_SIZE;
+                    break;
+                case TRAILER:
+                    if (lineLength == 0) {
+                        throw new EOFException("Stream ended");
+                    }
+                    break;
+                default:
+            }
+        }
+
+        /**
+         * Drop the connection and try again later, unless closed.
+         */
+        private void fail(Exception ex) {
+            disconnect();
+            later(ex);
+        }
+
+        private void later(Exception ex) {
+            if (closed || StreamEngine.this.closed) {
+                return;
+            }
+            reconnects.increment();
+            long delay = retry >= 0 ? retry : RECONNECT_DELAY;
+            Logger.getLogger(StreamEngine.class.getName()).log(ex instanceof EOFException ? Level.INFO : Level.WARNING,
+                    "Stream " + url + " lost, again in " + delay + " ms", ex);
+            Async.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+
+        /**
+         * Close the socket and let go of the buffers.
+         */
+        private void disconnect() {
+            connected = false;
+            paused = false;
+            if (null != decoder && decoder.retry() >= 0) {
+                retry = decoder.retry();
+            }
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // it is closed anyway
+                }
+            }
+            channel = null;
+            engine = null;
+            netIn = null;
+            netOut = null;
+            appIn = null;
+            out = null;
+            decoder = null;
+            measure();
+        }
+
+        private void measure() {
+            int n = request.length + line.length;
+            for (ByteBuffer b : new ByteBuffer[]{netIn, tls ? netOut : null, appIn}) {
+                if (null != b) {
+                    n += b.capacity();
+                }
+            }
+            if (null != decoder) {
+                n += decoder.bufferBytes();
+            }
+            bufferBytes = n;
+        }
+    }
+}
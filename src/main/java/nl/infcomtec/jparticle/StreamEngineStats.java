@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Snapshot of the statistics of a {@link StreamEngine}.
+ *
+ * @author walter
+ */
+public class StreamEngineStats {
+
+    /**
+     * Selector threads.
+     */
+    public final int selectors;
+    /**
+     * Streams open, connected or waiting to connect again.
+     */
+    public final int streams;
+    /**
+     * Streams connected and past the HTTP response headers.
+     */
+    public final int connected;
+    /**
+     * Events decoded and dispatched.
+     */
+    public final long events;
+    /**
+     * Bytes read from the sockets, before TLS.
+     */
+    public final long bytesRead;
+    /**
+     * Times a stream failed or ended and was opened again.
+     */
+    public final long reconnects;
+    /**
+     * Bytes of buffers held by all streams.
+     */
+    public final long bufferBytes;
+
+    public StreamEngineStats(int selectors, int streams, int connected, long events, long bytesRead, long reconnects, long bufferBytes) {
+        this.selectors = selectors;
+        this.streams = streams;
+        this.connected = connected;
+        this.events = events;
+        this.bytesRead = bytesRead;
+        this.reconnects = reconnects;
+        this.bufferBytes = bufferBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamEngineStats{" + "selectors=" + selectors + ", streams=" + streams + ", connected=" + connected + ", events=" + events
+                + ", bytesRead=" + bytesRead + ", reconnects=" + reconnects + ", bufferBytes=" + bufferBytes
+                + (streams > 0 ? " (" + bufferBytes / streams + " per stream)" : "") + '}';
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the fewest narrowed event streams that carry every event the
+ * subscribers of a {@link Cloud} want, see {@link Cloud#manageStreams}.
+ * <p>
+ * The Particle Cloud can filter a stream on the start of the event name,
+ * /v1/devices/events/{prefix}, and on a device, /v1/devices/{id}/events.
+ * Instead of reading all events and throwing most away, the manager looks at
+ * the selection of each subscription: an event name or prefix counts as a
+ * prefix, a device name is looked up as an id. Prefixes covered by a shorter
+ * one are dropped, as are device streams covered by a stream for all
+ * devices. While there are more streams than allowed, the two that share the
+ * longest prefix are merged into one for that prefix, on the same device if
+ * they were, else for all devices. In the end that is the one stream for
+ * everything. A journal or history on the Cloud wants every event, so then
+ * there is only that one stream.
+ * <p>
+ * When subscriptions or devices change the plan is made again, after
+ * {@link #SETTLE} milliseconds so a burst of changes is handled at once. New
+ * streams are opened before the streams they replace are closed, for at
+ * most {@link #SWITCH_TIMEOUT} milliseconds. While streams overlap, like
+ * during such a switch or with a device stream next to a longer prefix for
+ * all devices, events that arrive twice are only dispatched once.
+ *
+ * @author walter
+ */
+public class StreamManager {
+
+    /**
+     * Streams at most if not specified.
+     */
+    public static final int DEFAULT_MAX_STREAMS = 8;
+    /**
+     * Milliseconds to collect changes before making the plan again.
+     */
+    public static final long SETTLE = 100;
+    /**
+     * Milliseconds a replaced stream stays open waiting for the new ones to
+     * connect.
+     */
+    public static final long SWITCH_TIMEOUT = 10000;
+    /**
+     * Events remembered to recognize them when they arrive again.
+     */
+    private static final int RECENT = 4096;
+    /**
+     * Milliseconds between looking if the new streams are connected.
+     */
+    private static final long SWITCH_CHECK = 50;
+    private final Cloud cloud;
+    private final Executor executor;
+    private final StreamEngine engine;
+    private final boolean mine;
+    private final int maxStreams;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger switching = new AtomicInteger();
+    private final AtomicLong rebalances = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    /**
+     * Open streams by path, guarded by this.
+     */
+    private LinkedHashMap<String, Source> open = new LinkedHashMap<>();
+    /**
+     * True if the plan has streams that carry the same events.
+     */
+    private volatile boolean overlapping;
+    private volatile boolean closed;
+    /**
+     * Keys of recent events, guarded by itself.
+     */
+    private final LinkedHashMap<String, Boolean> recent = new LinkedHashMap<String, Boolean>(RECENT * 4 / 3 + 1) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT;
+        }
+    };
+
+    /**
+     * Constructor, see {@link Cloud#manageStreams}.
+     *
+     * @param cloud Whose subscribers to serve.
+     * @param executor Runs the planning and opening of streams.
+     * @param engine Reads the streams, or null for a thread per stream
+     * through the transport of the Cloud.
+     * @param mine If true the events of your devices, else those of all
+     * devices.
+     * @param maxStreams Streams at most.
+     */
+    StreamManager(Cloud cloud, Executor executor, StreamEngine engine, boolean mine, int maxStreams) {
+        if (maxStreams < 1) {
+            throw new IllegalArgumentException("maxStreams must be at least 1");
+        }
+        this.cloud = cloud;
+        this.executor = executor;
+        this.engine = engine;
+        this.mine = mine;
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * @return Paths of the open streams.
+     */
+    public synchronized List<String> paths() {
+        return new ArrayList<>(open.keySet());
+    }
+
+    /**
+     * @return Number of times streams were opened or closed for a new plan.
+     */
+    public long rebalances() {
+        return rebalances.get();
+    }
+
+    /**
+     * @return Number of events that arrived twice and were dispatched once.
+     */
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Make the plan again soon, for instance after a change the manager does
+     * not hear about.
+     */
+    public void changed() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            Async.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                rebalance();
+                            }
+                        });
+                    } catch (RuntimeException ex) {
+                        // rejected, the Cloud is closing
+                        scheduled.set(false);
+                    }
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(SETTLE));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamManager{" + "streams=" + paths() + ", maxStreams=" + maxStreams + ", rebalances=" + rebalances() + ", duplicates=" + duplicates() + '}';
+    }
+
+    /**
+     * Open and close streams to match the current plan.
+     */
+    synchronized void rebalance() {
+        scheduled.set(false);
+        if (closed) {
+            return;
+        }
+        List<String> want = plan();
+        // before a fresh stream can deliver, else its first events skip the
+        // check for those of the streams still open
+        boolean was = !open.isEmpty();
+        if (was) {
+            switching.incrementAndGet();
+        }
+        overlapping = overlaps(want);
+        boolean retiring = false;
+        try {
+            LinkedHashMap<String, Source> next = new LinkedHashMap<>();
+            ArrayList<Source> fresh = new ArrayList<>();
+            for (String path : want) {
+                Source s = open.remove(path);
+                if (null == s) {
+                    try {
+                        s = source(path);
+                    } catch (IOException ex) {
+                        if (!closed) {
+                            Logger.getLogger(StreamManager.class.getName()).log(Level.WARNING, "Cannot open " + path, ex);
+                        }
+                        continue;
+                    }
+                    fresh.add(s);
+                }
+                next.put(path, s);
+            }
+            ArrayList<Source> old = new ArrayList<>(open.values());
+            open = next;
+            if (fresh.isEmpty() && old.isEmpty()) {
+                return;
+            }
+            rebalances.incrementAndGet();
+            if (old.isEmpty()) {
+                return;
+            }
+            if (fresh.isEmpty()) {
+                for (Source s : old) {
+                    s.close();
+                }
+                return;
+            }
+            retiring = true;
+            retire(fresh, old, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWITCH_TIMEOUT));
+        } finally {
+            if (was && !retiring) {
+                switching.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Close the old streams once the new ones are connected.
+     */
+    private void retire(final List<Source> fresh, final List<Source> old, final long deadline) {
+        boolean ready = !closed;
+        for (Iterator<Source> it = fresh.iterator(); ready && it.hasNext();) {
+            ready = it.next().isConnected();
+        }
+        if (ready || closed || System.nanoTime() - deadline >= 0) {
+            for (Source s : old) {
+                s.close();
+            }
+            switching.decrementAndGet();
+            return;
+        }
+        Async.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retire(fresh, old, deadline);
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(SWITCH_CHECK));
+    }
+
+    /**
+     * Stop making plans, the streams are closed by the Cloud.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * See if an event should be dispatched.
+     *
+     * @param e The event.
+     * @return false if it arrived before on another stream.
+     */
+    boolean admit(Event e) {
+        if (!overlapping && switching.get() == 0) {
+            return true;
+        }
+        String key = e.coreId + '\n' + e.eventName + '\n' + (null == e.publishedAt ? 0 : e.publishedAt.getTime()) + '\n' + e.data;
+        synchronized (recent) {
+            if (null == recent.put(key, Boolean.TRUE)) {
+                return true;
+            }
+        }
+        duplicates.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Work out the streams that carry every event a subscriber wants.
+     *
+     * @return Paths of the streams.
+     */
+    List<String> plan() {
+        // device id, or "" for all devices, to prefixes; "" for all events
+        TreeMap<String, TreeSet<String>> cover = new TreeMap<>();
+        if (null != cloud.getEventJournal() || null != cloud.getEventHistory()) {
+            add(cover, "", "");
+        }
+        for (Subscription s : cloud.subscriptions()) {
+            String prefix = null != s.eventName ? s.eventName : null != s.eventPrefix ? s.eventPrefix : "";
+            if (!mine || (null == s.deviceId && null == s.deviceName)) {
+                add(cover, "", prefix);
+                continue;
+            }
+            // a subscriber for a name and an id matches on either; devices
+            // that are not yours send no events on these streams
+            if (null != s.deviceId && null != cloud.deviceById(s.deviceId)) {
+                add(cover, s.deviceId, prefix);
+            }
+            if (null != s.deviceName) {
+                Device d = cloud.device(s.deviceName);
+                if (null != d) {
+                    add(cover, d.id, prefix);
+                }
+            }
+        }
+        reduce(cover);
+        while (count(cover) > maxStreams) {
+            merge(cover);
+            reduce(cover);
+        }
+        ArrayList<String> ret = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> e : cover.entrySet()) {
+            for (String prefix : e.getValue()) {
+                ret.add(path(e.getKey(), prefix));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if two of the streams can carry the same event.
+     */
+    private boolean overlaps(List<String> paths) {
+        // only a device stream next to a prefix for all devices can
+        String all = mine ? "/v1/devices/events" : "/v1/events";
+        for (String p : paths) {
+            if (!p.startsWith(all)) {
+                for (String q : paths) {
+                    if (q.startsWith(all) && !q.equals(all)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Source source(String path) throws IOException {
+        if (null == engine) {
+            final Cloud.PublishedReader r = cloud.startReader(path);
+            return new Source() {
+                @Override
+                boolean isConnected() {
+                    return r.isConnected();
+                }
+
+                @Override
+                void close() {
+                    cloud.stopReader(r);
+                }
+            };
+        }
+        final StreamEngine.Stream s = cloud.openStream(engine, path);
+        return new Source() {
+            @Override
+            boolean isConnected() {
+                return s.isConnected();
+            }
+
+            @Override
+            void close() {
+                cloud.closeStream(s);
+            }
+        };
+    }
+
+    private String path(String device, String prefix) {
+        StringBuilder sb = new StringBuilder(mine ? "/v1/devices/" : "/v1/");
+        if (!device.isEmpty()) {
+            sb.append(device).append('/');
+        }
+        sb.append("events");
+        if (!prefix.isEmpty()) {
+            try {
+                sb.append('/').append(URLEncoder.encode(prefix, "UTF-8").replace("+", "%20"));
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void add(TreeMap<String, TreeSet<String>> cover, String device, String prefix) {
+        TreeSet<String> prefixes = cover.get(device);
+        if (null == prefixes) {
+            prefixes = new TreeSet<>();
+            cover.put(device, prefixes);
+        }
+        prefixes.add(prefix);
+    }
+
+    private static int count(TreeMap<String, TreeSet<String>> cover) {
+        int n = 0;
+        for (TreeSet<String> prefixes : cover.values()) {
+            n += prefixes.size();
+        }
+        return n;
+    }
+
+    /**
+     * Drop what another stream already carries.
+     */
+    private static void reduce(TreeMap<String, TreeSet<String>> cover) {
+        for (TreeSet<String> prefixes : cover.values()) {
+            String kept = null;
+            for (Iterator<String> it = prefixes.iterator(); it.hasNext();) {
+                String p = it.next();
+                // sorted, so a prefix comes right before what it covers
+                if (null != kept && p.startsWith(kept)) {
+                    it.remove();
+                } else {
+                    kept = p;
+                }
+            }
+        }
+        TreeSet<String> all = cover.get("");
+        if (null == all) {
+            return;
+        }
+        if (all.contains("")) {
+            cover.keySet().retainAll(Collections.singleton(""));
+            return;
+        }
+        for (Iterator<Map.Entry<String, TreeSet<String>>> it = cover.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, TreeSet<String>> e = it.next();
+            if (e.getKey().isEmpty()) {
+                continue;
+            }
+            for (Iterator<String> p = e.getValue().iterator(); p.hasNext();) {
+                String prefix = p.next();
+                for (String a : all) {
+                    if (prefix.startsWith(a)) {
+                        p.remove();
+                        break;
+                    }
+                }
+            }
+            if (e.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Add the prefix that replaces the two streams with the longest prefix
+     * in common; {@link #reduce} then drops them.
+     */
+    private static void merge(TreeMap<String, TreeSet<String>> cover) {
+        // in sorted order the pair with the longest common prefix is adjacent
+        ArrayList<String[]> all = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> e : cover.entrySet()) {
+            for (String prefix : e.getValue()) {
+                all.add(new String[]{prefix, e.getKey()});
+            }
+        }
+        Collections.sort(all, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                int c = a[0].compareTo(b[0]);
+                return c != 0 ? c : a[1].compareTo(b[1]);
+            }
+        });
+        String bestPrefix = "";
+        String bestDevice = "";
+        int best = -1;
+        for (int i = 1; i < all.size(); i++) {
+            String[] a = all.get(i - 1);
+            String[] b = all.get(i);
+            int n = common(a[0], b[0]);
+            String device = a[1].equals(b[1]) ? a[1] : "";
+            // on equal length keep the device
+            if (n > best || (n == best && bestDevice.isEmpty() && !device.isEmpty())) {
+                best = n;
+                bestPrefix = a[0].substring(0, n);
+                bestDevice = device;
+            }
+        }
+        add(cover, bestDevice, bestPrefix);
+    }
+
+    private static int common(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * An open stream.
+     */
+    private abstract static class Source {
+
+        abstract boolean isConnected();
+
+        abstract void close();
+    }
+}
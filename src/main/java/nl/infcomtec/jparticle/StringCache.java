@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns bytes into Strings, re-using the String if the same bytes were seen
+ * recently. Event names and device ids repeat all the time, this avoids
+ * creating a new String for each of them. Not thread safe.
+ *
+ * @author walter
+ */
+class StringCache {
+
+    private static final int SIZE = 512;
+    private static final int MAX_LENGTH = 64;
+    private final byte[][] keys = new byte[SIZE][];
+    private final String[] values = new String[SIZE];
+
+    /**
+     * Get the (UTF-8) String for some bytes.
+     *
+     * @param b The bytes.
+     * @param off Where they start.
+     * @param len How many.
+     * @return The String.
+     */
+    String get(byte[] b, int off, int len) {
+        if (len > MAX_LENGTH) {
+            return decode(b, off, len);
+        }
+        int h = 1;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + b[i];
+        }
+        int slot = (h ^ (h >>> 16)) & (SIZE - 1);
+        byte[] key = keys[slot];
+        if (null != key && key.length == len) {
+            int i = 0;
+            while (i < len && key[i] == b[off + i]) {
+                i++;
+            }
+            if (i == len) {
+                return values[slot];
+            }
+        }
+        key = new byte[len];
+        System.arraycopy(b, off, key, 0, len);
+        String s = decode(b, off, len);
+        keys[slot] = key;
+        values[slot] = s;
+        return s;
+    }
+
+    /**
+     * Decode UTF-8, quickly if it is all ASCII.
+     *
+     * @param b The bytes.
+     * @param off Where they start.
+     * @param len How many.
+     * @return The String.
+     */
+    static String decode(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] < 0) {
+                return new String(b, off, len, StandardCharsets.UTF_8);
+            }
+        }
+        return new String(b, off, len, StandardCharsets.ISO_8859_1);
+    }
+}
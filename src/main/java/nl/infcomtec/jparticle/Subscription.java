@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A registered subscriber, with the selection it had when it subscribed and
+ * its own bounded queue of events.
+ * <p>
+ * Events are queued by the event reader and handed to the subscriber on the
+ * pool. What happens when the queue is full is decided by the
+ * {@link OverflowPolicy}.
+ * <p>
+ * In {@link DispatchMode#UNORDERED} there is one queue, drained by at most
+ * as many tasks at a time as there are processors. In
+ * {@link DispatchMode#ORDERED_PER_DEVICE} the queue is split in lanes by
+ * device id, each drained by one task at a time, so the events of a device
+ * stay in order while different devices run in parallel. The capacity is
+ * then divided over the lanes. In {@link DispatchMode#SERIAL} there is one
+ * queue drained by one task at a time.
+ * <p>
+ * A subscription can also wait for the subscriber to ask for events, see
+ * {@link #request}; until then the events stay queued.
+ *
+ * @author walter
+ */
+public class Subscription {
+
+    /**
+     * Events handled by one task before it makes way for other work.
+     */
+    private static final int BATCH = 64;
+    /**
+     * Or nanoseconds spent by one task before it makes way for other work.
+     */
+    private static final long SLICE = 5000000L;
+    final DeviceEvent callBack;
+    final UUID uuid;
+    final String deviceName;
+    final String deviceId;
+    final String eventName;
+    /**
+     * Only events with a name that starts with this, may be null.
+     */
+    final String eventPrefix;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final DispatchMode mode;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Lane[] lanes;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Where the time between reading and handing over an event goes, may be
+     * null.
+     */
+    private final LatencyHistogram lag;
+    private Executor pool;
+    private boolean closed;
+    /**
+     * Events the subscriber asked for and did not get yet, Long.MAX_VALUE for
+     * no limit.
+     */
+    private long demand = Long.MAX_VALUE;
+    /**
+     * Signal for the subscriber once no call-back runs any more, see
+     * {@link #cancel(Runnable)}.
+     */
+    private Runnable last;
+    /**
+     * Where the subscription is registered, set by the index.
+     */
+    volatile SubscriptionIndex index;
+
+    /**
+     * Captures the selection of the subscriber.
+     *
+     * @param callBack The subscriber.
+     * @param capacity Maximum number of queued events.
+     * @param policy What to do when the queue is full.
+     * @param mode Whether the events of a device must stay in order.
+     */
+    Subscription(DeviceEvent callBack, int capacity, OverflowPolicy policy, DispatchMode mode) {
+        this(callBack, capacity, policy, mode, null);
+    }
+
+    /**
+     * Captures the selection of the subscriber.
+     *
+     * @param callBack The subscriber.
+     * @param capacity Maximum number of queued events.
+     * @param policy What to do when the queue is full.
+     * @param mode Whether the events of a device must stay in order.
+     * @param lag Where to record the dispatch lag, may be null.
+     */
+    Subscription(DeviceEvent callBack, int capacity, OverflowPolicy policy, DispatchMode mode, LatencyHistogram lag) {
+        this(callBack, capacity, policy, mode, lag, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Captures the selection of the subscriber.
+     *
+     * @param callBack The subscriber, with no event name if there is a
+     * prefix.
+     * @param capacity Maximum number of queued events.
+     * @param policy What to do when the queue is full.
+     * @param mode Whether the events of a device must stay in order.
+     * @param lag Where to record the dispatch lag, may be null.
+     * @param eventPrefix Only events with a name that starts with this, may
+     * be null.
+     * @param demand Events to hand over before waiting for
+     * {@link #request}, Long.MAX_VALUE to never wait.
+     */
+    Subscription(DeviceEvent callBack, int capacity, OverflowPolicy policy, DispatchMode mode, LatencyHistogram lag,
+            String eventPrefix, long demand) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.callBack = callBack;
+        this.uuid = callBack.uuid();
+        this.deviceName = callBack.forDeviceName();
+        this.deviceId = callBack.forDeviceId();
+        this.eventName = callBack.forEventName();
+        this.capacity = capacity;
+        this.policy = policy;
+        this.mode = mode;
+        this.lag = lag;
+        this.eventPrefix = eventPrefix;
+        this.demand = demand;
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (mode == DispatchMode.ORDERED_PER_DEVICE) {
+            // more lanes than threads, so busy devices rarely share a lane
+            lanes = new Lane[Math.min(capacity, 4 * processors)];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane(capacity / lanes.length + (capacity % lanes.length == 0 ? 0 : 1), 1);
+            }
+        } else if (mode == DispatchMode.SERIAL) {
+            lanes = new Lane[]{new Lane(capacity, 1)};
+        } else {
+            lanes = new Lane[]{new Lane(capacity, processors)};
+        }
+    }
+
+    /**
+     * @return The UUID of the subscriber.
+     */
+    public UUID uuid() {
+        return uuid;
+    }
+
+    /**
+     * @return The subscriber.
+     */
+    public DeviceEvent callBack() {
+        return callBack;
+    }
+
+    /**
+     * @return Maximum number of queued events.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return What happens when the queue is full.
+     */
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * @return Whether the events of a device stay in order.
+     */
+    public DispatchMode mode() {
+        return mode;
+    }
+
+    /**
+     * @return Number of events waiting to be handled.
+     */
+    public int depth() {
+        lock.lock();
+        try {
+            int n = 0;
+            for (Lane l : lanes) {
+                n += l.size();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events handed to the subscriber.
+     */
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return Number of events dropped or replaced because the queue was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Ask for more events. Only needed for a subscription that waits for
+     * demand, like one from {@link EventPublisher}.
+     *
+     * @param n Number of events, added to what was asked before.
+     */
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        ArrayList<Lane> start = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            for (Lane l : lanes) {
+                if (l.size() > 0 && l.drainers < l.maxDrainers) {
+                    l.drainers++;
+                    start.add(l);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Lane l : start) {
+            l.start();
+        }
+    }
+
+    /**
+     * Stop delivering, like {@link Cloud#unSubscribe}.
+     */
+    public void cancel() {
+        cancel(null);
+    }
+
+    /**
+     * Stop delivering, then give the subscriber a last signal, like an
+     * error. It runs after a call-back in progress has returned, so the two
+     * never overlap: on this thread if no call-back runs, else on the thread
+     * of the call-back when it is done.
+     *
+     * @param signal The last signal, may be null.
+     */
+    void cancel(Runnable signal) {
+        Runnable now;
+        lock.lock();
+        try {
+            // close first, the index checks for that when it adds
+            close();
+            last = signal;
+            now = takeLast();
+        } finally {
+            lock.unlock();
+        }
+        SubscriptionIndex i = index;
+        if (null != i) {
+            i.remove(this);
+        }
+        if (null != now) {
+            now.run();
+        }
+    }
+
+    /**
+     * The last signal if it is due, guarded by the lock.
+     */
+    private Runnable takeLast() {
+        if (null == last) {
+            return null;
+        }
+        for (Lane l : lanes) {
+            if (l.drainers > 0) {
+                return null;
+            }
+        }
+        Runnable ret = last;
+        last = null;
+        return ret;
+    }
+
+    /**
+     * Queue the event for the subscriber.
+     * <p>
+     * With {@link OverflowPolicy#BLOCK} and a full queue the caller waits
+     * for room, unless it gave a resume task: then the event is queued over
+     * the capacity, and the caller is to hold off until the task runs.
+     *
+     * @param e The event.
+     * @param pool Where to run the call-back.
+     * @param resume Runs when there is room again, must not block; null to
+     * wait instead.
+     * @return false if the caller should hold off until resume runs.
+     */
+    boolean deliver(Event e, Executor pool, Runnable resume) {
+        if (null != eventPrefix && !e.eventName.startsWith(eventPrefix)) {
+            return true;
+        }
+        Lane lane = lanes.length == 1 ? lanes[0] : lanes[(e.coreId.hashCode() & 0x7FFFFFFF) % lanes.length];
+        boolean start;
+        boolean room = true;
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            this.pool = pool;
+            if (!lane.offer(e, null == resume)) {
+                return true;
+            }
+            if (null != resume && policy == OverflowPolicy.BLOCK && lane.queue.size() >= lane.capacity) {
+                if (!lane.resumes.contains(resume)) {
+                    lane.resumes.add(resume);
+                }
+                room = false;
+            }
+            start = demand > 0 && lane.drainers < lane.maxDrainers;
+            if (start) {
+                lane.drainers++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (start) {
+            lane.start();
+        }
+        return room;
+    }
+
+    /**
+     * Count an event lost because the queue was full; the first one is
+     * logged, else nothing but the counter tells.
+     */
+    private void drop() {
+        if (dropped.incrementAndGet() == 1) {
+            Logger.getLogger(Subscription.class.getName()).log(Level.WARNING,
+                    "Queue of subscriber {0} is full ({1} events, {2}), dropping events", new Object[]{uuid, capacity, policy});
+        }
+    }
+
+    /**
+     * Stop delivering, queued events are discarded.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Lane l : lanes) {
+                l.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true after {@link #close()}.
+     */
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Subscription{" + "uuid=" + uuid + ", policy=" + policy + ", mode=" + mode + ", capacity=" + capacity
+                + ", depth=" + depth() + ", delivered=" + delivered() + ", dropped=" + dropped() + '}';
+    }
+
+    /**
+     * One queue with its drain task. All fields are guarded by the lock of
+     * the subscription.
+     */
+    private class Lane implements Runnable {
+
+        private final int capacity;
+        private final int maxDrainers;
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        private final LinkedHashMap<String, Event> latest = new LinkedHashMap<>();
+        /**
+         * Callers holding off until there is room, see {@link #deliver}.
+         */
+        private final ArrayList<Runnable> resumes = new ArrayList<>();
+        private int drainers;
+
+        Lane(int capacity, int maxDrainers) {
+            this.capacity = capacity;
+            this.maxDrainers = maxDrainers;
+        }
+
+        int size() {
+            return policy == OverflowPolicy.CONFLATE ? latest.size() : queue.size();
+        }
+
+        void clear() {
+            queue.clear();
+            latest.clear();
+            notFull.signalAll();
+            resume();
+        }
+
+        /**
+         * Let the callers that hold off carry on.
+         */
+        void resume() {
+            for (Runnable r : resumes) {
+                r.run();
+            }
+            resumes.clear();
+        }
+
+        /**
+         * @param wait Whether to wait for room with BLOCK, else the queue
+         * goes over its capacity.
+         * @return false if the event was not queued.
+         */
+        boolean offer(Event e, boolean wait) {
+            if (policy == OverflowPolicy.CONFLATE) {
+                String key = e.coreId + '/' + e.eventName;
+                if (null != latest.put(key, e)) {
+                    dropped.incrementAndGet();
+                } else if (latest.size() > capacity) {
+                    Iterator<Map.Entry<String, Event>> it = latest.entrySet().iterator();
+                    it.next();
+                    it.remove();
+                    drop();
+                }
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        while (wait && queue.size() >= capacity && !closed) {
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                drop();
+                                return false;
+                            }
+                        }
+                        if (closed) {
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        queue.pollFirst();
+                        drop();
+                        break;
+                    default:
+                        drop();
+                        return false;
+                }
+            }
+            queue.addLast(e);
+            return true;
+        }
+
+        Event next() {
+            if (policy == OverflowPolicy.CONFLATE) {
+                Iterator<Event> it = latest.values().iterator();
+                if (!it.hasNext()) {
+                    return null;
+                }
+                Event e = it.next();
+                it.remove();
+                return e;
+            }
+            Event e = queue.pollFirst();
+            if (null != e) {
+                notFull.signal();
+                if (!resumes.isEmpty() && queue.size() < capacity) {
+                    resume();
+                }
+            }
+            return e;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long until = now + SLICE;
+            for (int n = 0; n < BATCH && now - until < 0; n++, now = System.nanoTime()) {
+                Event e;
+                Runnable signal = null;
+                lock.lock();
+                try {
+                    e = demand > 0 ? next() : null;
+                    if (null == e) {
+                        drainers--;
+                        signal = takeLast();
+                    } else if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (null == e) {
+                    if (null != signal) {
+                        signal.run();
+                    }
+                    return;
+                }
+                if (null != lag) {
+                    lag.record(now - e.received);
+                }
+                try {
+                    callBack.event(e);
+                } catch (Throwable t) {
+                    // also an Error, else this lane would never run again
+                    Logger.getLogger(Subscription.class.getName()).log(Level.SEVERE, null, t);
+                }
+                delivered.incrementAndGet();
+            }
+            // let other work run, then continue
+            start();
+        }
+
+        /**
+         * Run the drain task, the caller counted it as a drainer.
+         */
+        void start() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // closed: no drainer after all
+                Runnable signal;
+                lock.lock();
+                try {
+                    drainers--;
+                    signal = takeLast();
+                } finally {
+                    lock.unlock();
+                }
+                if (null != signal) {
+                    signal.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Finds the subscribers for an event without looking at all of them.
+ * <p>
+ * Subscriptions are indexed by device name, device id or neither, and within
+ * that by event name or any event. The index is immutable and replaced on
+ * every change (copy-on-write), so the event reader never waits for
+ * {@link Cloud#subscribe} or {@link Cloud#unSubscribe}.
+ *
+ * @author walter
+ */
+class SubscriptionIndex {
+
+    private final LinkedHashMap<UUID, Subscription> all = new LinkedHashMap<>();
+    private volatile Routes routes = new Routes(Collections.<String, Bucket>emptyMap(), Collections.<String, Bucket>emptyMap(), null);
+    /**
+     * Told about every change, may be null.
+     */
+    private volatile Runnable listener;
+
+    /**
+     * Be told about added and removed subscriptions.
+     *
+     * @param listener Called after every change, with the index locked, so
+     * it should not block.
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add a subscription, replacing any with the same UUID.
+     *
+     * @param s The subscription.
+     */
+    synchronized void add(Subscription s) {
+        remove(s.uuid);
+        all.put(s.uuid, s);
+        routes = routes.with(s);
+        s.index = this;
+        if (s.isClosed()) {
+            // cancelled while being added
+            remove(s);
+        }
+        changed();
+    }
+
+    /**
+     * Remove a subscription.
+     *
+     * @param uuid Of the subscription.
+     * @return The removed subscription or null.
+     */
+    synchronized Subscription remove(UUID uuid) {
+        Subscription s = all.remove(uuid);
+        if (null != s) {
+            routes = routes.without(s);
+            s.close();
+            changed();
+        }
+        return s;
+    }
+
+    private void changed() {
+        Runnable l = listener;
+        if (null != l) {
+            l.run();
+        }
+    }
+
+    /**
+     * Remove a subscription, if it was not replaced by one with the same
+     * UUID.
+     *
+     * @param s The subscription.
+     */
+    synchronized void remove(Subscription s) {
+        if (all.get(s.uuid) == s) {
+            remove(s.uuid);
+        }
+    }
+
+    /**
+     * @return All subscriptions, in order of subscribing.
+     */
+    synchronized List<Subscription> all() {
+        return new ArrayList<>(all.values());
+    }
+
+    /**
+     * Find a subscription.
+     *
+     * @param uuid Of the subscription.
+     * @return The subscription or null.
+     */
+    synchronized Subscription get(UUID uuid) {
+        return all.get(uuid);
+    }
+
+    /**
+     * Deliver an event to all subscribers that want it.
+     *
+     * @param e The event.
+     * @param pool Where to run the call-backs.
+     * @param resume Null to wait for subscribers with a full queue, else see
+     * {@link Subscription#deliver}.
+     * @return false if the caller should hold off until resume runs.
+     */
+    boolean dispatch(Event e, Executor pool, Runnable resume) {
+        Routes r = routes;
+        boolean room = true;
+        Bucket b = r.byName.get(e.deviceName);
+        if (null != b) {
+            room &= b.dispatch(e, pool, null, resume);
+        }
+        b = r.byId.get(e.coreId);
+        if (null != b) {
+            // skip those that also selected on (and matched) the name
+            room &= b.dispatch(e, pool, e.deviceName, resume);
+        }
+        if (null != r.anyDevice) {
+            room &= r.anyDevice.dispatch(e, pool, null, resume);
+        }
+        return room;
+    }
+
+    /**
+     * The subscribers of one device selection.
+     */
+    private static class Bucket {
+
+        private static final Subscription[] NONE = new Subscription[0];
+        final Map<String, Subscription[]> byEvent;
+        final Subscription[] anyEvent;
+
+        Bucket(Map<String, Subscription[]> byEvent, Subscription[] anyEvent) {
+            this.byEvent = byEvent;
+            this.anyEvent = anyEvent;
+        }
+
+        boolean dispatch(Event e, Executor pool, String matchedName, Runnable resume) {
+            boolean room = deliver(anyEvent, e, pool, matchedName, resume);
+            Subscription[] subs = byEvent.get(e.eventName);
+            if (null != subs) {
+                room &= deliver(subs, e, pool, matchedName, resume);
+            }
+            return room;
+        }
+
+        private static boolean deliver(Subscription[] subs, Event e, Executor pool, String matchedName, Runnable resume) {
+            boolean room = true;
+            for (Subscription s : subs) {
+                if (null == matchedName || !matchedName.equals(s.deviceName)) {
+                    room &= s.deliver(e, pool, resume);
+                }
+            }
+            return room;
+        }
+
+        static Bucket with(Bucket b, Subscription s) {
+            Map<String, Subscription[]> byEvent = null == b ? Collections.<String, Subscription[]>emptyMap() : b.byEvent;
+            Subscription[] anyEvent = null == b ? NONE : b.anyEvent;
+            if (null == s.eventName) {
+                return new Bucket(byEvent, add(anyEvent, s));
+            }
+            HashMap<String, Subscription[]> copy = new HashMap<>(byEvent);
+            Subscription[] subs = copy.get(s.eventName);
+            copy.put(s.eventName, add(null == subs ? NONE : subs, s));
+            return new Bucket(copy, anyEvent);
+        }
+
+        static Bucket without(Bucket b, Subscription s) {
+            if (null == b) {
+                return null;
+            }
+            Map<String, Subscription[]> byEvent = b.byEvent;
+            Subscription[] anyEvent = b.anyEvent;
+            if (null == s.eventName) {
+                anyEvent = remove(anyEvent, s);
+            } else {
+                Subscription[] subs = byEvent.get(s.eventName);
+                if (null != subs) {
+                    HashMap<String, Subscription[]> copy = new HashMap<>(byEvent);
+                    subs = remove(subs, s);
+                    if (subs.length == 0) {
+                        copy.remove(s.eventName);
+                    } else {
+                        copy.put(s.eventName, subs);
+                    }
+                    byEvent = copy;
+                }
+            }
+            if (anyEvent.length == 0 && byEvent.isEmpty()) {
+                return null;
+            }
+            return new Bucket(byEvent, anyEvent);
+        }
+
+        private static Subscription[] add(Subscription[] subs, Subscription s) {
+            Subscription[] ret = Arrays.copyOf(subs, subs.length + 1);
+            ret[subs.length] = s;
+            return ret;
+        }
+
+        private static Subscription[] remove(Subscription[] subs, Subscription s) {
+            for (int i = 0; i < subs.length; i++) {
+                if (subs[i] == s) {
+                    Subscription[] ret = new Subscription[subs.length - 1];
+                    System.arraycopy(subs, 0, ret, 0, i);
+                    System.arraycopy(subs, i + 1, ret, i, ret.length - i);
+                    return ret;
+                }
+            }
+            return subs;
+        }
+    }
+
+    /**
+     * One immutable version of the index.
+     */
+    private static class Routes {
+
+        final Map<String, Bucket> byName;
+        final Map<String, Bucket> byId;
+        final Bucket anyDevice;
+
+        Routes(Map<String, Bucket> byName, Map<String, Bucket> byId, Bucket anyDevice) {
+            this.byName = byName;
+            this.byId = byId;
+            this.anyDevice = anyDevice;
+        }
+
+        Routes with(Subscription s) {
+            // a subscriber for a name and an id matches on either
+            Map<String, Bucket> names = byName;
+            Map<String, Bucket> ids = byId;
+            Bucket any = anyDevice;
+            if (null != s.deviceName) {
+                names = new HashMap<>(byName);
+                names.put(s.deviceName, Bucket.with(names.get(s.deviceName), s));
+            }
+            if (null != s.deviceId) {
+                ids = new HashMap<>(byId);
+                ids.put(s.deviceId, Bucket.with(ids.get(s.deviceId), s));
+            }
+            if (null == s.deviceName && null == s.deviceId) {
+                any = Bucket.with(anyDevice, s);
+            }
+            return new Routes(names, ids, any);
+        }
+
+        Routes without(Subscription s) {
+            Map<String, Bucket> names = byName;
+            Map<String, Bucket> ids = byId;
+            Bucket any = anyDevice;
+            if (null != s.deviceName) {
+                names = without(byName, s.deviceName, s);
+            }
+            if (null != s.deviceId) {
+                ids = without(byId, s.deviceId, s);
+            }
+            if (null == s.deviceName && null == s.deviceId) {
+                any = Bucket.without(anyDevice, s);
+            }
+            return new Routes(names, ids, any);
+        }
+
+        private static Map<String, Bucket> without(Map<String, Bucket> map, String key, Subscription s) {
+            HashMap<String, Bucket> copy = new HashMap<>(map);
+            Bucket b = Bucket.without(copy.get(key), s);
+            if (null == b) {
+                copy.remove(key);
+            } else {
+                copy.put(key, b);
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Carries all calls to the Particle cloud.
+ * <p>
+ * Every request made by {@link Cloud} and {@link Device} goes through an
+ * implementation of this interface, so it can be replaced by something that
+ * pools, limits or measures the traffic.
+ *
+ * @author walter
+ */
+public interface Transport {
+
+    /**
+     * Perform a request and read the complete response.
+     *
+     * @param method GET or POST.
+     * @param path Path on the API host, like "/v1/devices".
+     * @param accessToken Your access token. Should start with Bearer.
+     * @param form URL encoded form data to send, or null for none.
+     * @return The response, also for non-200 status codes.
+     * @throws IOException If the request could not be completed.
+     */
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException;
+
+    /**
+     * Open a long running stream, like the published events.
+     *
+     * @param path Path on the API host, like "/v1/devices/events".
+     * @param accessToken Your access token. Should start with Bearer.
+     * @return The stream, close it when done.
+     * @throws IOException If the stream could not be opened.
+     */
+    public InputStream stream(String path, String accessToken) throws IOException;
+
+    /**
+     * Statistics for this transport.
+     *
+     * @return A snapshot of the current statistics.
+     */
+    public TransportStats stats();
+}
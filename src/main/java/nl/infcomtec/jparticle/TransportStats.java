@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+/**
+ * Snapshot of the statistics of a {@link Transport}.
+ *
+ * @author walter
+ */
+public class TransportStats {
+
+    /**
+     * Maximum number of concurrent requests, the pool size.
+     */
+    public final int maxConnections;
+    /**
+     * Requests currently in progress.
+     */
+    public final int inUse;
+    /**
+     * Highest number of concurrent requests seen.
+     */
+    public final int peakInUse;
+    /**
+     * Total number of requests.
+     */
+    public final long requests;
+    /**
+     * Requests that failed with an exception.
+     */
+    public final long failures;
+    /**
+     * Requests that had to wait for a free connection.
+     */
+    public final long waits;
+    /**
+     * New (TLS) connections opened; requests minus this were served over a
+     * kept-alive connection. Only counted for https.
+     */
+    public final long connectionsOpened;
+    /**
+     * Event streams currently open.
+     */
+    public final int openStreams;
+
+    public TransportStats(int maxConnections, int inUse, int peakInUse, long requests, long failures, long waits, long connectionsOpened, int openStreams) {
+        this.maxConnections = maxConnections;
+        this.inUse = inUse;
+        this.peakInUse = peakInUse;
+        this.requests = requests;
+        this.failures = failures;
+        this.waits = waits;
+        this.connectionsOpened = connectionsOpened;
+        this.openStreams = openStreams;
+    }
+
+    @Override
+    public String toString() {
+        return "TransportStats{" + "maxConnections=" + maxConnections + ", inUse=" + inUse + ", peakInUse=" + peakInUse + ", requests=" + requests + ", failures=" + failures + ", waits=" + waits + ", connectionsOpened=" + connectionsOpened + ", openStreams=" + openStreams + '}';
+    }
+}
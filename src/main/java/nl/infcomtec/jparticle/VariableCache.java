@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Cache for variable values, see {@link Cloud#setVariableCache}.
+ * <p>
+ * Values are kept for a time-to-live that can be set per variable name or per
+ * device and variable. The number of values is bounded, the least recently
+ * used one is dropped first. When several threads miss on the same variable
+ * at the same time only one of them asks the cloud, the others wait for and
+ * share that answer. Failed reads (null or an exception) are never cached.
+ *
+ * @author walter
+ */
+public class VariableCache {
+
+    /**
+     * Time-to-live in milliseconds if not specified.
+     */
+    public static final long DEFAULT_TTL = 1000;
+    /**
+     * Maximum number of values if not specified.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final int maxEntries;
+    private final long defaultTtlNanos;
+    private final ConcurrentHashMap<String, Long> ttlByVariable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<VariableRef, Long> ttlByRef = new ConcurrentHashMap<>();
+    /**
+     * Cached values in access order, guarded by itself.
+     */
+    private final LinkedHashMap<VariableRef, Cached> entries;
+    /**
+     * Reads in progress.
+     */
+    private final ConcurrentHashMap<VariableRef, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor with {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_TTL}.
+     */
+    public VariableCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries Maximum number of values to keep.
+     * @param defaultTtl Milliseconds to keep a value unless set otherwise
+     * with {@link #setTtl}.
+     */
+    public VariableCache(int maxEntries, long defaultTtl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtl);
+        this.entries = new LinkedHashMap<VariableRef, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<VariableRef, Cached> eldest) {
+                if (size() > VariableCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Set the time-to-live for a variable on all devices.
+     *
+     * @param variable Name of the variable.
+     * @param ttl Milliseconds to keep a value, 0 to never cache it.
+     */
+    public void setTtl(String variable, long ttl) {
+        ttlByVariable.put(variable, TimeUnit.MILLISECONDS.toNanos(ttl));
+    }
+
+    /**
+     * Set the time-to-live for a variable on one device, this overrides the
+     * time-to-live for the variable name.
+     *
+     * @param device Name of the device.
+     * @param variable Name of the variable.
+     * @param ttl Milliseconds to keep a value, 0 to never cache it.
+     */
+    public void setTtl(String device, String variable, long ttl) {
+        ttlByRef.put(new VariableRef(device, variable), TimeUnit.MILLISECONDS.toNanos(ttl));
+    }
+
+    /**
+     * Get a value from the cache, or read it.
+     *
+     * @param ref The variable.
+     * @param reader Reads the value from the cloud on a miss.
+     * @return The value, null if the read failed.
+     * @throws Exception From the reader, also in threads that waited for it.
+     */
+    public Object get(VariableRef ref, Callable<Object> reader) throws Exception {
+        long ttl = ttlNanos(ref);
+        if (ttl <= 0) {
+            misses.increment();
+            return reader.call();
+        }
+        Object value = lookup(ref);
+        if (null != value) {
+            hits.increment();
+            return value;
+        }
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> other = inFlight.putIfAbsent(ref, mine);
+        if (null != other) {
+            coalesced.increment();
+            try {
+                return other.get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof Exception ? (Exception) cause : ex;
+            }
+        }
+        value = recheck(ref, mine);
+        if (null != value) {
+            return value;
+        }
+        misses.increment();
+        try {
+            value = reader.call();
+            if (null != value) {
+                synchronized (entries) {
+                    entries.put(ref, new Cached(value, System.nanoTime() + ttl));
+                }
+            }
+            // stored before it leaves inFlight, see recheck
+            inFlight.remove(ref, mine);
+            mine.complete(value);
+            return value;
+        } catch (Exception | Error ex) {
+            inFlight.remove(ref, mine);
+            mine.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Get a value from the cache, or start reading it. Like {@link #get},
+     * concurrent reads of the same variable share one request, also with
+     * blocking reads.
+     *
+     * @param ref The variable.
+     * @param reader Starts reading the value from the cloud on a miss.
+     * @return The value, null if the read failed; completes exceptionally
+     * like the reader.
+     */
+    public CompletableFuture<Object> getAsync(final VariableRef ref, Supplier<CompletableFuture<Object>> reader) {
+        final long ttl = ttlNanos(ref);
+        if (ttl <= 0) {
+            misses.increment();
+            return reader.get();
+        }
+        Object value = lookup(ref);
+        if (null != value) {
+            hits.increment();
+            return CompletableFuture.completedFuture(value);
+        }
+        final CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> other = inFlight.putIfAbsent(ref, mine);
+        if (null != other) {
+            coalesced.increment();
+            // a copy, so the caller cannot complete the shared one
+            return other.thenApply(Function.<Object>identity());
+        }
+        value = recheck(ref, mine);
+        if (null != value) {
+            return CompletableFuture.completedFuture(value);
+        }
+        misses.increment();
+        CompletableFuture<Object> read;
+        try {
+            read = reader.get();
+        } catch (RuntimeException ex) {
+            read = Async.failed(ex);
+        }
+        read.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable ex) {
+                if (null == ex && null != value) {
+                    synchronized (entries) {
+                        entries.put(ref, new Cached(value, System.nanoTime() + ttl));
+                    }
+                }
+                // stored before it leaves inFlight, see recheck
+                inFlight.remove(ref, mine);
+                if (null != ex) {
+                    mine.completeExceptionally(Async.unwrap(ex));
+                } else {
+                    mine.complete(value);
+                }
+            }
+        });
+        return mine.thenApply(Function.<Object>identity());
+    }
+
+    /**
+     * Drop a value, the next read will go to the cloud.
+     *
+     * @param ref The variable.
+     */
+    public void invalidate(VariableRef ref) {
+        synchronized (entries) {
+            entries.remove(ref);
+        }
+    }
+
+    /**
+     * Drop all values of a device.
+     *
+     * @param device Name of the device.
+     */
+    public void invalidateDevice(String device) {
+        synchronized (entries) {
+            for (Iterator<VariableRef> it = entries.keySet().iterator(); it.hasNext();) {
+                if (device.equals(it.next().device)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all values.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return Number of values currently cached, including expired ones not
+     * yet dropped.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return Reads answered from the cache.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Reads that went to the cloud.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Reads that waited for the same read by another thread.
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return Values dropped because the cache was full.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "VariableCache{" + "size=" + size() + ", maxEntries=" + maxEntries + ", hits=" + hits() + ", misses=" + misses() + ", coalesced=" + coalesced() + ", evictions=" + evictions() + '}';
+    }
+
+    private long ttlNanos(VariableRef ref) {
+        Long ttl = ttlByRef.get(ref);
+        if (null == ttl) {
+            ttl = ttlByVariable.get(ref.variable);
+        }
+        return null == ttl ? defaultTtlNanos : ttl;
+    }
+
+    /**
+     * Look in the cache again after registering a read. A read that finished
+     * between the first look and the registration stored its value before it
+     * left inFlight, so it is found here instead of read again.
+     *
+     * @return The value, with the registration undone, or null to go on
+     * reading.
+     */
+    private Object recheck(VariableRef ref, CompletableFuture<Object> mine) {
+        Object value = lookup(ref);
+        if (null != value) {
+            inFlight.remove(ref, mine);
+            // for whoever joined in the meantime
+            mine.complete(value);
+            hits.increment();
+        }
+        return value;
+    }
+
+    private Object lookup(VariableRef ref) {
+        synchronized (entries) {
+            Cached e = entries.get(ref);
+            if (null == e) {
+                return null;
+            }
+            if (e.expires - System.nanoTime() <= 0) {
+                entries.remove(ref);
+                return null;
+            }
+            return e.value;
+        }
+    }
+
+    /**
+     * A cached value.
+     */
+    private static class Cached {
+
+        final Object value;
+        /**
+         * System.nanoTime() at which the value is stale.
+         */
+        final long expires;
+
+        Cached(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
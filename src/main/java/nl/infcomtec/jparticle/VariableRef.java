@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.Objects;
+
+/**
+ * A variable on a device, for reading many at once.
+ *
+ * @author walter
+ */
+public final class VariableRef {
+
+    /**
+     * Name of the device.
+     */
+    public final String device;
+    /**
+     * Name of the variable.
+     */
+    public final String variable;
+
+    /**
+     * Constructor.
+     *
+     * @param device Name of the device.
+     * @param variable Name of the variable.
+     */
+    public VariableRef(String device, String variable) {
+        this.device = device;
+        this.variable = variable;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(device) + Objects.hashCode(variable);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VariableRef)) {
+            return false;
+        }
+        final VariableRef other = (VariableRef) obj;
+        return Objects.equals(device, other.device) && Objects.equals(variable, other.variable);
+    }
+
+    @Override
+    public String toString() {
+        return device + "/" + variable;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs every task on a virtual thread of its own, at most maxConcurrency at
+ * the same time. Tasks over the cap wait on their thread for a permit, which
+ * costs a virtual thread next to nothing, so submitting never blocks.
+ * <p>
+ * Virtual threads are made through reflection, the library still runs on
+ * Java 8; {@link #create} returns null when they are not available.
+ *
+ * @author walter
+ */
+final class VirtualExecutor extends AbstractExecutorService {
+
+    /**
+     * Maximum number of tasks running at the same time.
+     */
+    final int maxConcurrency;
+    private final ThreadFactory factory;
+    private final Semaphore permits;
+    /**
+     * Started and not yet finished, to interrupt them on shutdownNow().
+     */
+    private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicInteger tasks = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    private VirtualExecutor(ThreadFactory factory, int maxConcurrency) {
+        this.factory = factory;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Make an executor, if this Java has virtual threads.
+     *
+     * @param name Prefix of the thread names.
+     * @param maxConcurrency Maximum number of tasks running at the same time.
+     * @return The executor or null before Java 21.
+     */
+    static VirtualExecutor create(String name, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        try {
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory) type.getMethod("factory").invoke(builder);
+            // a preview build only fails here
+            factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            return new VirtualExecutor(factory, maxConcurrency);
+        } catch (Exception | LinkageError ex) {
+            Logger.getLogger(VirtualExecutor.class.getName()).log(Level.FINE, "No virtual threads", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        tasks.incrementAndGet();
+        Thread t = factory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    permits.acquire();
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException ex) {
+                    // shutdownNow() before it got a permit
+                } finally {
+                    threads.remove(Thread.currentThread());
+                    tasks.decrementAndGet();
+                }
+            }
+        });
+        threads.add(t);
+        t.start();
+    }
+
+    /**
+     * @return Tasks running.
+     */
+    int active() {
+        return tasks.get() - permits.getQueueLength();
+    }
+
+    /**
+     * @return Tasks waiting for a permit.
+     */
+    int waiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Wait until no task is running or waiting.
+     *
+     * @param timeout Milliseconds to wait at most.
+     * @return true if idle.
+     */
+    boolean awaitIdle(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (tasks.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return awaitIdle(unit.toMillis(timeout)) && shutdown;
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualExecutor{" + "maxConcurrency=" + maxConcurrency + ", active=" + active() + ", waiting=" + waiting() + '}';
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2017 by Walter Stroebel and InfComTec.
+ * All rights reserved.
+ */
+package nl.infcomtec.jparticle;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Transport on the HTTP client of Java 11, used by {@link HttpTransport} for
+ * asynchronous requests. This class only exists in the jar for Java 11 and
+ * later and is created by reflection, see {@link Async#httpClient}.
+ * <p>
+ * Requests do not hold a thread while waiting for the network; a few threads
+ * handle all responses. At most maxConnections requests are in progress at
+ * once, the rest wait in a queue, also without a thread. HTTP/2 is used when
+ * the server offers it, so many requests share one connection.
+ *
+ * @author walter
+ */
+class HttpClientTransport implements AsyncTransport {
+
+    private static final ExecutorService RESPONSES = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JParticle-http-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final String baseUrl;
+    private final int maxConnections;
+    private final Duration readTimeout;
+    private final HttpClient client;
+    private final AtomicInteger permits;
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    HttpClientTransport(String baseUrl, int maxConnections, int connectTimeout, int readTimeout) {
+        this.baseUrl = baseUrl;
+        this.maxConnections = maxConnections;
+        this.permits = new AtomicInteger(maxConnections);
+        this.readTimeout = Duration.ofMillis(readTimeout);
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .executor(RESPONSES)
+                // HTTP/2 needs TLS, without it the client would try an upgrade on every connection
+                .version(baseUrl.startsWith("https:") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<Response> exchangeAsync(String method, String path, String accessToken, String form) {
+        final CompletableFuture<Response> ret = new CompletableFuture<>();
+        final HttpRequest request;
+        try {
+            HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(readTimeout);
+            if (null != accessToken) {
+                b.header("Authorization", accessToken);
+            }
+            if (null != form) {
+                b.header("Content-Type", "application/x-www-form-urlencoded");
+                b.method(method, HttpRequest.BodyPublishers.ofString(form));
+            } else {
+                b.method(method, HttpRequest.BodyPublishers.noBody());
+            }
+            request = b.build();
+        } catch (IllegalArgumentException ex) {
+            ret.completeExceptionally(new IOException(ex));
+            return ret;
+        }
+        queue.add(new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+                    @Override
+                    public void accept(HttpResponse<byte[]> resp, Throwable ex) {
+                        permits.incrementAndGet();
+                        start();
+                        if (null != ex) {
+                            failures.incrementAndGet();
+                            ret.completeExceptionally(Async.unwrap(ex));
+                        } else {
+                            ret.complete(new Response(resp.statusCode(), resp.body(), resp.headers().map()));
+                        }
+                    }
+                });
+            }
+        });
+        if (permits.get() <= 0) {
+            waits.incrementAndGet();
+        }
+        start();
+        return ret;
+    }
+
+    @Override
+    public Response exchange(String method, String path, String accessToken, String form) throws IOException {
+        return Async.get(exchangeAsync(method, path, accessToken, form));
+    }
+
+    @Override
+    public InputStream stream(String path, String accessToken) throws IOException {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + path)).header("Accept", "text/event-stream");
+        if (null != accessToken) {
+            b.header("Authorization", accessToken);
+        }
+        HttpResponse<InputStream> resp;
+        try {
+            resp = client.send(b.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted opening a stream");
+        }
+        if (resp.statusCode() >= 400) {
+            resp.body().close();
+            throw new IOException("Server returned HTTP response code: " + resp.statusCode() + " for URL: " + baseUrl + path);
+        }
+        openStreams.incrementAndGet();
+        return new FilterInputStream(resp.body()) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    openStreams.decrementAndGet();
+                }
+                super.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportStats stats() {
+        return new TransportStats(maxConnections, maxConnections - Math.max(0, permits.get()), peakInUse.get(), requests.get(),
+                failures.get(), waits.get(), 0, openStreams.get());
+    }
+
+    /**
+     * Start queued requests while there are permits.
+     */
+    private void start() {
+        while (!queue.isEmpty()) {
+            int p = permits.get();
+            if (p <= 0) {
+                return;
+            }
+            if (!permits.compareAndSet(p, p - 1)) {
+                continue;
+            }
+            Runnable r = queue.poll();
+            if (null == r) {
+                permits.incrementAndGet();
+                continue;
+            }
+            int n = maxConnections - p + 1;
+            int peak;
+            while (n > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, n)) {
+                // retry
+            }
+            r.run();
+        }
+    }
+}